@@ -0,0 +1,54 @@
+package phash;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/*
+* function: inputs shared by the benchmarks.
+* The Paris photos are not part of the repo, so decode benchmarks use a
+* JPEG given with -Dphash.bench.image=<file>, or a synthetic one of the
+* requested size. The search benchmarks load the bundled hashtxt corpus
+* (-Dphash.bench.hashtxt=<dir>, default ../hashtxt or hashtxt).
+*/
+final class BenchData {
+
+    private BenchData() {
+    }
+
+    static byte[] jpeg(int width, int height) throws IOException {
+        String path = System.getProperty("phash.bench.image");
+        if (path != null) {
+            return Files.readAllBytes(new File(path).toPath());
+        }
+        Random rnd = new Random(534);
+        BufferedImage img = new BufferedImage(width, height,
+                BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = img.createGraphics();
+        for (int k = 0; k < 60; k++) {
+            g.setColor(new Color(rnd.nextInt(0xffffff)));
+            g.fillOval(rnd.nextInt(width), rnd.nextInt(height),
+                    rnd.nextInt(width / 2) + 5, rnd.nextInt(height / 2) + 5);
+        }
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(img, "jpg", out);
+        return out.toByteArray();
+    }
+
+    static ArrayHashStore corpus() throws IOException {
+        String path = System.getProperty("phash.bench.hashtxt");
+        File dir = path != null ? new File(path) : new File("../hashtxt");
+        if (path == null && !dir.isDirectory()) {
+            dir = new File("hashtxt");
+        }
+        return HashTxt.load(dir);
+    }
+}
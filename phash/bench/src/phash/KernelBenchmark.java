@@ -0,0 +1,112 @@
+package phash;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+* function: HammingKernel scan throughput on one thread, scalar against
+* SIMD, over 1M hashes (the hashtxt corpus tiled with random bit flips).
+* Scores are hashes per second (one operation = one record scanned).
+*
+* usage: java -cp bench/target/benchmarks.jar phash.KernelBenchmark
+*        adds the SIMD kernel, and --add-modules jdk.incubator.vector to the
+*        fork, only when the jar holds it (built on JDK 17+, the vector
+*        profile) and runs on Java 17+;
+*        run through benchmarks.jar directly it measures the scalar kernel
+*        (-p kernel=scalar,vector with the module flag on the java command
+*        line, which the fork inherits)
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark {
+
+    private static final int RECORDS = 1 << 20;
+
+    @Param({ "scalar" })
+    public String kernel;
+
+    private HammingKernel impl;
+    private long[] hashes;
+    private long query;
+
+    @Setup
+    public void setup() throws Exception {
+        this.impl = HammingKernel.Kernels.select(this.kernel);
+        if (!this.impl.name().startsWith(this.kernel)) {
+            // only when asked for with -p, main() leaves it out
+            throw new IllegalStateException(this.kernel + " kernel unavailable,"
+                    + " build on JDK 17+ and run with --add-modules jdk.incubator.vector");
+        }
+        ArrayHashStore corpus = BenchData.corpus();
+        Random rnd = new Random(534);
+        this.hashes = new long[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            this.hashes[i] = corpus.hash(i % corpus.size())
+                    ^ (1L << rnd.nextInt(corpus.hashLength()));
+        }
+        this.query = corpus.hash(corpus.size() / 2) ^ 0x21L;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public TopKCollector top12() {
+        TopKCollector top = new TopKCollector(12);
+        this.impl.topK(this.hashes, 0, RECORDS, 0, this.query, top);
+        return top;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void within8(final Blackhole bh) {
+        this.impl.within(this.hashes, 0, RECORDS, 0, this.query, 8,
+                new MultiIndexHash.HitVisitor() {
+                    public void hit(int id, int distance) {
+                        bh.consume(id);
+                    }
+                });
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(KernelBenchmark.class.getName());
+        if (vectorBuilt()) {
+            options.param("kernel", "scalar", "vector")
+                    .jvmArgsAppend("--add-modules", "jdk.incubator.vector");
+        } else {
+            System.out.println("vector kernel not built or JVM older than 17, scalar only");
+        }
+        new Runner(options.build()).run();
+    }
+
+    // the class is there (vector profile) and the JVM can load it, 17 like its class files
+    private static boolean vectorBuilt() {
+        if (KernelBenchmark.class.getClassLoader()
+                .getResource("phash/VectorHammingKernel.class") == null) {
+            return false;
+        }
+        String version = System.getProperty("java.specification.version");
+        return !version.startsWith("1.") && Integer.parseInt(version) >= 17;
+    }
+}
@@ -0,0 +1,142 @@
+package phash;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+* function: one benchmark per stage of ImagePHash.getPHash, in pipeline
+* order, plus the whole pipeline, so a change to one stage shows up on
+* its own line.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({ "1024x768", "4000x3000" })
+    public String imageSize;
+
+    private byte[] jpeg;
+    private BufferedImage decoded;
+    private BufferedImage resized;
+    private ColorConvertOp colorConvert;
+    private double[][] vals;
+    private double[][] dctVals;
+    private double[][] work;
+
+    private ImagePHash hasher;
+    private ImagePHash fastHasher;
+    private DctEngine reference;
+    private DctEngine separable;
+    private DctEngine partial;
+
+    @Setup
+    public void setup() throws Exception {
+        int x = this.imageSize.indexOf('x');
+        this.jpeg = BenchData.jpeg(Integer.parseInt(this.imageSize.substring(0, x)),
+                Integer.parseInt(this.imageSize.substring(x + 1)));
+        this.decoded = ImageIO.read(new ByteArrayInputStream(this.jpeg));
+
+        this.hasher = new ImagePHash();
+        this.fastHasher = new ImagePHash();
+        this.fastHasher.setDownscaleSamples(1);
+        this.fastHasher.setDecodeOversample(4);
+
+        this.resized = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+        this.colorConvert = new ColorConvertOp(
+                ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
+        this.hasher.resize(this.decoded, this.resized);
+        this.hasher.grayscale(this.resized, this.colorConvert);
+
+        this.vals = new double[32][32];
+        for (int i = 0; i < 32; i++) {
+            for (int j = 0; j < 32; j++) {
+                this.vals[i][j] = ImagePHash.getBlue(this.resized, i, j);
+            }
+        }
+        this.reference = new ReferenceDct(32);
+        this.separable = new SeparableDct(32);
+        this.partial = new SeparableDct(32, 8);
+        this.dctVals = new double[32][32];
+        this.work = new double[32][32];
+        this.partial.applyDCT(this.vals, this.dctVals, this.work);
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(this.jpeg));
+    }
+
+    @Benchmark
+    public BufferedImage decodeSubsampled() throws Exception {
+        return ImagePHash.decode(new ByteArrayInputStream(this.jpeg), 32 * 4);
+    }
+
+    @Benchmark
+    public BufferedImage resize() {
+        return this.hasher.resize(this.decoded, this.resized);
+    }
+
+    @Benchmark
+    public BufferedImage grayscale() {
+        return this.hasher.grayscale(this.resized, this.colorConvert);
+    }
+
+    @Benchmark
+    public double[][] dctReference() {
+        this.reference.applyDCT(this.vals, this.dctVals, this.work);
+        return this.dctVals;
+    }
+
+    @Benchmark
+    public double[][] dctSeparable() {
+        this.separable.applyDCT(this.vals, this.dctVals, this.work);
+        return this.dctVals;
+    }
+
+    @Benchmark
+    public double[][] dctSeparablePartial() {
+        this.partial.applyDCT(this.vals, this.dctVals, this.work);
+        return this.dctVals;
+    }
+
+    @Benchmark
+    public PHash hashBits() {
+        return this.hasher.hashBits(this.dctVals);
+    }
+
+    @Benchmark
+    public PHash fullHashDecoded() {
+        return this.hasher.getPHash(this.decoded);
+    }
+
+    @Benchmark
+    public PHash fullHash() throws Exception {
+        return this.hasher.getPHash(new ByteArrayInputStream(this.jpeg));
+    }
+
+    @Benchmark
+    public PHash fullHashFast() throws Exception {
+        return this.fastHasher.getPHash(new ByteArrayInputStream(this.jpeg));
+    }
+}
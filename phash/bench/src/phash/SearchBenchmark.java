@@ -0,0 +1,95 @@
+package phash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+* function: a full distance scan and a top-12 query over the bundled 6,380-entry hashtxt
+* corpus, against the in-heap and the memory-mapped store.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+    private ArrayHashStore store;
+    private MappedHashStore mapped;
+    private File indexFile;
+    private String[] bitStrings;
+    private long query;
+    private String queryBits;
+
+    @Setup
+    public void setup() throws IOException {
+        this.store = BenchData.corpus();
+        this.indexFile = File.createTempFile("phash-bench", ".phx");
+        HashIndexFile.write(this.store, this.indexFile);
+        this.mapped = HashIndexFile.open(this.indexFile);
+
+        this.bitStrings = new String[this.store.size()];
+        for (int i = 0; i < this.bitStrings.length; i++) {
+            this.bitStrings[i] = PHash.toBitString(this.store.hash(i),
+                    this.store.hashLength());
+        }
+        // a catalogue hash with two bits flipped, like a re-encoded upload
+        this.query = this.store.hash(this.store.size() / 2) ^ 0x21L;
+        this.queryBits = PHash.toBitString(this.query, this.store.hashLength());
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.indexFile.delete();
+    }
+
+    // the original char-by-char compare, as a baseline for distancePackedScan
+    private static int distanceBitString(String s1, String s2) {
+        int counter = 0;
+        for (int k = 0; k < s1.length(); k++) {
+            if (s1.charAt(k) != s2.charAt(k)) {
+                counter++;
+            }
+        }
+        return counter;
+    }
+
+    @Benchmark
+    public void distanceBitStringScan(Blackhole bh) {
+        for (int i = 0; i < this.bitStrings.length; i++) {
+            bh.consume(distanceBitString(this.queryBits, this.bitStrings[i]));
+        }
+    }
+
+    @Benchmark
+    public void distancePackedScan(Blackhole bh) {
+        for (int i = 0; i < this.store.size(); i++) {
+            bh.consume(PHash.distance(this.query, this.store.hash(i)));
+        }
+    }
+
+    @Benchmark
+    public TopKCollector top12() {
+        return HashSearch.topK(this.store, this.query, 12);
+    }
+
+    @Benchmark
+    public TopKCollector top12Mapped() {
+        return HashSearch.topK(this.mapped, this.query, 12);
+    }
+}
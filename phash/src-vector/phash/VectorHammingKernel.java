@@ -0,0 +1,123 @@
+package phash;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+* function: HammingKernel on SIMD lanes (jdk.incubator.vector).
+* A whole vector of stored hashes is XORed with the broadcast query and
+* popcounted lane-wise, then compared against the bound (the K-th best
+* distance) in one go; only lanes under the bound are looked at one by
+* one, which for a top-K scan is almost none of them.
+*
+* within() stays on the scalar loop: with a radius a good share of lanes
+* hit, and unpacking them from the mask measured slower than POPCNT
+* (1346 vs 1937 M hashes/s in KernelBenchmark).
+*
+* The popcount is the SWAR bit-twiddling sequence (shift/and/add, one
+* multiply to sum the bytes): VectorOperators.BIT_COUNT only exists from
+* JDK 19, and this has to build on 17.
+*
+* Compiled by the vector profile (pom.xml) into the same classes directory;
+* loaded reflectively by HammingKernel.get(), never referenced directly.
+*/
+public class VectorHammingKernel implements HammingKernel {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    private static final long M1 = 0x5555555555555555L;
+    private static final long M2 = 0x3333333333333333L;
+    private static final long M4 = 0x0f0f0f0f0f0f0f0fL;
+    private static final long H01 = 0x0101010101010101L;
+
+    private static final ScalarHammingKernel SCALAR = new ScalarHammingKernel();
+
+    public VectorHammingKernel() {
+        // fail here, not in the first query, if the module is missing
+        popcount(LongVector.broadcast(SPECIES, -1L));
+    }
+
+    public String name() {
+        return "vector/" + SPECIES.length() + "x64";
+    }
+
+    private static LongVector popcount(LongVector x) {
+        x = x.sub(x.lanewise(VectorOperators.LSHR, 1).and(M1));
+        x = x.and(M2).add(x.lanewise(VectorOperators.LSHR, 2).and(M2));
+        x = x.add(x.lanewise(VectorOperators.LSHR, 4)).and(M4);
+        return x.mul(H01).lanewise(VectorOperators.LSHR, 56);
+    }
+
+    public void topK(long[] hashes, int off, int len, int firstId, long query,
+            TopKCollector top) {
+        int delta = firstId - off;
+        int to = off + len;
+        LongVector q = LongVector.broadcast(SPECIES, query);
+        int worst = top.worstDistance();
+        LongVector bound = LongVector.broadcast(SPECIES, worst);
+        int lanes = SPECIES.length();
+        int i = off;
+        for (int end = off + SPECIES.loopBound(len); i < end; i += lanes) {
+            LongVector d = popcount(LongVector.fromArray(SPECIES, hashes, i).lanewise(
+                    VectorOperators.XOR, q));
+            // ids only grow, so a tie with the K-th best never gets in
+            VectorMask<Long> m = d.compare(VectorOperators.LT, bound);
+            if (m.anyTrue()) {
+                for (long bits = m.toLong(); bits != 0; bits &= bits - 1) {
+                    int lane = Long.numberOfTrailingZeros(bits);
+                    top.offer((int) d.lane(lane), i + lane + delta);
+                }
+                if (top.worstDistance() != worst) {
+                    worst = top.worstDistance();
+                    bound = LongVector.broadcast(SPECIES, worst);
+                }
+            }
+        }
+        for (; i < to; i++) {
+            top.offer(Long.bitCount(query ^ hashes[i]), i + delta);
+        }
+    }
+
+    public void topKAny(long[] hashes, int off, int len, int firstId, long[] queries,
+            TopKCollector top) {
+        int delta = firstId - off;
+        int to = off + len;
+        LongVector[] q = new LongVector[queries.length];
+        for (int j = 0; j < q.length; j++) {
+            q[j] = LongVector.broadcast(SPECIES, queries[j]);
+        }
+        int worst = top.worstDistance();
+        LongVector bound = LongVector.broadcast(SPECIES, worst);
+        int lanes = SPECIES.length();
+        int i = off;
+        for (int end = off + SPECIES.loopBound(len); i < end; i += lanes) {
+            // the stored hashes are loaded once for all queries
+            LongVector h = LongVector.fromArray(SPECIES, hashes, i);
+            LongVector d = popcount(h.lanewise(VectorOperators.XOR, q[0]));
+            for (int j = 1; j < q.length; j++) {
+                d = d.min(popcount(h.lanewise(VectorOperators.XOR, q[j])));
+            }
+            VectorMask<Long> m = d.compare(VectorOperators.LT, bound);
+            if (m.anyTrue()) {
+                for (long bits = m.toLong(); bits != 0; bits &= bits - 1) {
+                    int lane = Long.numberOfTrailingZeros(bits);
+                    top.offer((int) d.lane(lane), i + lane + delta);
+                }
+                if (top.worstDistance() != worst) {
+                    worst = top.worstDistance();
+                    bound = LongVector.broadcast(SPECIES, worst);
+                }
+            }
+        }
+        for (; i < to; i++) {
+            top.offer(ScalarHammingKernel.nearest(hashes[i], queries), i + delta);
+        }
+    }
+
+    public void within(long[] hashes, int off, int len, int firstId, long query,
+            int maxDistance, MultiIndexHash.HitVisitor visitor) {
+        SCALAR.within(hashes, off, len, firstId, query, maxDistance, visitor);
+    }
+}
@@ -0,0 +1,359 @@
+package phash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/*
+* function: hashes the images inside a zip or tar(.gz) archive straight
+* from the archive stream, without extracting anything to disk.
+*
+* The archive is read front to back once by the calling thread; each image
+* entry is copied into memory and handed to a pool of hashing threads.
+* At most 2 x threads entries are held at a time, and results are reported
+* in archive order from the calling thread, so the visitor need not be
+* thread-safe.
+*
+* Tar is read by hand (java.util.zip has no tar): ustar and old-style
+* headers, GNU long names ('L') and pax 'path' records are understood,
+* everything but regular files is skipped.
+*
+* usage: ArchiveHasher <archive .zip/.tar/.tar.gz/.tgz> <out.txt> [threads]
+*        writes "<entry path> <bits>\r\n" lines like the hashtxt files and
+*        the hash they hold to <out.txt>.config; -Dphash.hash picks it
+*/
+public class ArchiveHasher {
+
+    public interface EntryVisitor {
+        void hashed(String name, PHash hash);
+
+        void failed(String name, Exception e);
+    }
+
+    private static final int BLOCK = 512;
+
+    private final ImagePHash hasher;
+    private final int threads;
+
+    public ArchiveHasher(ImagePHash hasher, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1: " + threads);
+        }
+        this.hasher = hasher;
+        this.threads = threads;
+    }
+
+    /**
+     * Hashes every image entry of a .zip, .tar, .tar.gz or .tgz file.
+     *
+     * @return number of entries hashed
+     */
+    public int hash(File archive, EntryVisitor visitor) throws IOException,
+            InterruptedException {
+        String name = archive.getName().toLowerCase();
+        InputStream in = new BufferedInputStream(new FileInputStream(archive), 1 << 16);
+        try {
+            if (name.endsWith(".zip")) {
+                return this.hashZip(in, visitor);
+            }
+            if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+                return this.hashTar(new GZIPInputStream(in, 1 << 16), visitor);
+            }
+            if (name.endsWith(".tar")) {
+                return this.hashTar(in, visitor);
+            }
+            throw new IOException("not a .zip, .tar, .tar.gz or .tgz file: " + archive);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Hashes the image entries of a zip stream. The stream is read to the
+     * end but not closed.
+     */
+    public int hashZip(InputStream in, EntryVisitor visitor) throws IOException,
+            InterruptedException {
+        ZipInputStream zin = new ZipInputStream(in);
+        Pipeline pipeline = new Pipeline(visitor);
+        try {
+            ZipEntry entry;
+            while ((entry = zin.getNextEntry()) != null) {
+                if (!entry.isDirectory() && BulkIndexer.isImage(entry.getName())) {
+                    pipeline.submit(entry.getName(), readEntry(zin, entry.getSize()));
+                }
+            }
+            return pipeline.finish();
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    /**
+     * Hashes the image entries of an uncompressed tar stream. The stream is
+     * read to the end but not closed.
+     */
+    public int hashTar(InputStream in, EntryVisitor visitor) throws IOException,
+            InterruptedException {
+        Pipeline pipeline = new Pipeline(visitor);
+        try {
+            byte[] header = new byte[BLOCK];
+            String longName = null;
+            while (readBlock(in, header)) {
+                if (isZero(header)) {
+                    break; // end-of-archive marker
+                }
+                long size = octal(header, 124, 12);
+                char type = (char) header[156];
+                String name = longName != null ? longName : tarName(header);
+                longName = null;
+
+                if (type == 'L' || type == 'x') {
+                    byte[] data = readEntry(in, size);
+                    skip(in, padding(size));
+                    longName = type == 'L' ? cString(data, 0, data.length) : paxPath(data);
+                    continue;
+                }
+                if ((type == '0' || type == 0) && BulkIndexer.isImage(name)) {
+                    byte[] data = readEntry(in, size);
+                    skip(in, padding(size));
+                    pipeline.submit(name, data);
+                } else {
+                    skip(in, size + padding(size));
+                }
+            }
+            return pipeline.finish();
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    // bounded, order-preserving hand-off to the hashing threads
+    private final class Pipeline {
+        private final EntryVisitor visitor;
+        private final ExecutorService pool;
+        private final Deque<String> names = new ArrayDeque<String>();
+        private final Deque<Future<PHash>> results = new ArrayDeque<Future<PHash>>();
+        private int hashed;
+
+        Pipeline(EntryVisitor visitor) {
+            this.visitor = visitor;
+            this.pool = Executors.newFixedThreadPool(ArchiveHasher.this.threads);
+        }
+
+        void submit(String name, final byte[] data) throws InterruptedException {
+            if (this.results.size() >= 2 * ArchiveHasher.this.threads) {
+                this.deliver();
+            }
+            this.names.add(name);
+            this.results.add(this.pool.submit(new Callable<PHash>() {
+                public PHash call() throws Exception {
+                    return ArchiveHasher.this.hasher.getPHash(data);
+                }
+            }));
+        }
+
+        private void deliver() throws InterruptedException {
+            String name = this.names.poll();
+            try {
+                PHash hash = this.results.poll().get();
+                this.hashed++;
+                this.visitor.hashed(name, hash);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                this.visitor.failed(name, cause instanceof Exception
+                        ? (Exception) cause : new Exception(cause));
+            }
+        }
+
+        int finish() throws InterruptedException {
+            while (!this.results.isEmpty()) {
+                this.deliver();
+            }
+            return this.hashed;
+        }
+
+        void shutdown() {
+            this.pool.shutdownNow();
+        }
+    }
+
+    // copies one entry into memory; size < 0 means unknown (zip data descriptors)
+    private static byte[] readEntry(InputStream in, long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("entry larger than 2GB");
+        }
+        if (size < 0) {
+            return HashCache.readFully(in);
+        }
+        byte[] data = new byte[(int) size];
+        int off = 0;
+        while (off < data.length) {
+            int n = in.read(data, off, data.length - off);
+            if (n < 0) {
+                throw new EOFException("archive ends inside an entry");
+            }
+            off += n;
+        }
+        return data;
+    }
+
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int off = 0;
+        while (off < block.length) {
+            int n = in.read(block, off, block.length - off);
+            if (n < 0) {
+                if (off == 0) {
+                    return false;
+                }
+                throw new EOFException("archive ends inside a tar header");
+            }
+            off += n;
+        }
+        return true;
+    }
+
+    private static void skip(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("archive ends inside an entry");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static long padding(long size) {
+        return (BLOCK - size % BLOCK) % BLOCK;
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ustar: prefix (345, 155 bytes) + '/' + name (0, 100 bytes)
+    private static String tarName(byte[] header) {
+        String name = cString(header, 0, 100);
+        if (header[257] == 'u' && header[258] == 's' && header[259] == 't'
+                && header[260] == 'a' && header[261] == 'r') {
+            String prefix = cString(header, 345, 155);
+            if (prefix.length() > 0) {
+                return prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    private static String cString(byte[] b, int off, int len) {
+        int end = off;
+        while (end < off + len && b[end] != 0) {
+            end++;
+        }
+        return new String(b, off, end - off, StandardCharsets.UTF_8);
+    }
+
+    private static long octal(byte[] b, int off, int len) throws IOException {
+        long v = 0;
+        for (int i = off; i < off + len; i++) {
+            int c = b[i];
+            if (c == 0 || c == ' ') {
+                if (v > 0) {
+                    break;
+                }
+                continue;
+            }
+            if (c < '0' || c > '7') {
+                throw new IOException("bad tar header (size field)");
+            }
+            v = v * 8 + (c - '0');
+        }
+        return v;
+    }
+
+    // pax extended header: "<len> key=value\n" records, only path matters here
+    private static String paxPath(byte[] data) {
+        String s = new String(data, StandardCharsets.UTF_8);
+        int pos = 0;
+        while (pos < s.length()) {
+            int sp = s.indexOf(' ', pos);
+            int nl = s.indexOf('\n', sp + 1);
+            if (sp < 0 || nl < 0) {
+                break;
+            }
+            String record = s.substring(sp + 1, nl);
+            if (record.startsWith("path=")) {
+                return record.substring(5);
+            }
+            pos = nl + 1;
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: ArchiveHasher <archive .zip/.tar/.tar.gz/.tgz> <out.txt> [threads]");
+            return;
+        }
+        Metrics.fromSystemProperties();
+        int threads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        ImagePHash hasher = new ImagePHash(HashConfig.fromSystemProperties());
+        HashCache cache = HashCache.fromSystemProperties(hasher);
+        long start = System.currentTimeMillis();
+        HashTxt.writeConfig(new File(args[1]), hasher.config());
+        final Writer w = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(args[1]), StandardCharsets.UTF_8), 1 << 16);
+        final int[] failed = new int[1];
+        int hashed;
+        try {
+            hashed = new ArchiveHasher(hasher, threads).hash(new File(args[0]),
+                    new EntryVisitor() {
+                        public void hashed(String name, PHash hash) {
+                            try {
+                                w.write(name + " " + hash.toBitString() + "\r\n");
+                            } catch (IOException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+
+                        public void failed(String name, Exception e) {
+                            failed[0]++;
+                            System.err.println(name + ": " + e);
+                        }
+                    });
+        } finally {
+            w.close();
+            if (cache != null) {
+                cache.close();
+            }
+        }
+        System.out.println("hashed " + hashed + " images (" + failed[0]
+                + " failed) in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
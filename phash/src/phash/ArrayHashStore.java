@@ -0,0 +1,141 @@
+package phash;
+
+import java.util.Arrays;
+
+/*
+* function: growable in-memory HashStore backed by a long[] and a String[].
+* Hashes longer than 64 bits take PHash.words(hashLength) consecutive longs.
+*/
+public class ArrayHashStore implements GrowableHashStore {
+
+    private int hashLength;
+    private int words;
+    private int size;
+    private long[] hashes;
+    private String[] names;
+    private HashConfig config;
+
+    public ArrayHashStore(int hashLength) {
+        this(hashLength, 1024);
+    }
+
+    public ArrayHashStore(int hashLength, int capacity) {
+        this.hashLength = hashLength;
+        this.words = PHash.words(hashLength);
+        this.names = new String[Math.max(capacity, 16)];
+        this.hashes = new long[this.names.length * this.words];
+    }
+
+    /**
+     * Copies another store, e.g. to pull a mapped index fully into the heap.
+     *
+     * @param src
+     * @return ArrayHashStore
+     */
+    public static ArrayHashStore copyOf(HashStore src) {
+        ArrayHashStore store = new ArrayHashStore(src.hashLength(), src.size());
+        store.config = src.config();
+        int words = store.words;
+        for (int i = 0; i < src.size(); i++) {
+            store.grow();
+            for (int w = 0; w < words; w++) {
+                store.hashes[store.size * words + w] = src.word(i, w);
+            }
+            store.names[store.size++] = src.name(i);
+        }
+        return store;
+    }
+
+    public void add(String name, long hash) {
+        if (this.words != 1) {
+            throw new IllegalArgumentException(this.hashLength
+                    + "-bit store, add a PHash");
+        }
+        this.grow();
+        this.hashes[this.size] = hash;
+        this.names[this.size] = name;
+        this.size++;
+    }
+
+    public void add(String name, PHash hash) {
+        if (hash.length() != this.hashLength) {
+            throw new IllegalArgumentException("expected a " + this.hashLength
+                    + "-bit hash, got " + hash.length());
+        }
+        this.grow();
+        for (int w = 0; w < this.words; w++) {
+            this.hashes[this.size * this.words + w] = hash.word(w);
+        }
+        this.names[this.size] = name;
+        this.size++;
+    }
+
+    private void grow() {
+        if (this.size == this.names.length) {
+            int capacity = this.size + (this.size >> 1);
+            this.hashes = Arrays.copyOf(this.hashes, capacity * this.words);
+            this.names = Arrays.copyOf(this.names, capacity);
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int hashLength() {
+        return this.hashLength;
+    }
+
+    public long hash(int i) {
+        if (i >= this.size) {
+            throw new IndexOutOfBoundsException(i + " >= " + this.size);
+        }
+        if (this.words != 1) {
+            throw new IllegalStateException(this.hashLength
+                    + "-bit hashes span " + this.words + " words, use word(i, w)");
+        }
+        return this.hashes[i];
+    }
+
+    /**
+     * The backing array for the scan kernels (see HammingKernel): record i
+     * at [i * words(), (i + 1) * words()), valid up to size() records.
+     * Do not modify; it is replaced when the store grows.
+     */
+    long[] hashArray() {
+        return this.hashes;
+    }
+
+    public String name(int i) {
+        if (i >= this.size) {
+            throw new IndexOutOfBoundsException(i + " >= " + this.size);
+        }
+        return this.names[i];
+    }
+
+    @Override
+    public int words() {
+        return this.words;
+    }
+
+    @Override
+    public long word(int i, int w) {
+        if (i >= this.size) {
+            throw new IndexOutOfBoundsException(i + " >= " + this.size);
+        }
+        return this.hashes[i * this.words + w];
+    }
+
+    @Override
+    public HashConfig config() {
+        return this.config;
+    }
+
+    public void setConfig(HashConfig config) {
+        if (config != null && config.bits() != this.hashLength) {
+            throw new IllegalArgumentException(config + " makes " + config.bits()
+                    + "-bit hashes, this store holds " + this.hashLength);
+        }
+        this.config = config;
+    }
+}
@@ -0,0 +1,288 @@
+package phash;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+* function: many query images against the index in one pass.
+* The queries are hashed in parallel, then the index is scanned once in
+* blocks small enough to stay in cache: every block is compared against
+* all queued query hashes (HammingKernel) before moving on, so N queries
+* cost about one scan of the index instead of N. The records are split
+* into one range per worker thread, each scanned for all queries into
+* its own top-Ks, which are merged per query at the end (as ShardedIndex
+* does), so every thread reads only its part of the index.
+*
+* usage: BatchQuery <index .phx or hashtxt dir> <query dir or list file> <out.csv|out.jsonl> [k] [threads]
+*/
+public class BatchQuery {
+
+    // 4096 hashes = 32KB, about an L1 data cache
+    static final int BLOCK = 4096;
+
+    private BatchQuery() {
+    }
+
+    /**
+     * @return finished top-K of every query, in query order
+     */
+    public static TopKCollector[] search(final HashStore store,
+            final long[] queries, final int k, int threads) throws InterruptedException {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be >= 1: " + k);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1: " + threads);
+        }
+        int n = store.size();
+        // at least a block per range
+        int parts = Math.max(1, Math.min(threads, (n + BLOCK - 1) / BLOCK));
+        TopKCollector[] tops = null;
+        ExecutorService pool = Executors.newFixedThreadPool(parts);
+        try {
+            List<Future<TopKCollector[]>> futures = new ArrayList<Future<TopKCollector[]>>();
+            for (int p = 0; p < parts; p++) {
+                final int from = (int) ((long) n * p / parts);
+                final int to = (int) ((long) n * (p + 1) / parts);
+                futures.add(pool.submit(new Callable<TopKCollector[]>() {
+                    public TopKCollector[] call() {
+                        TopKCollector[] part = new TopKCollector[queries.length];
+                        for (int q = 0; q < queries.length; q++) {
+                            part[q] = new TopKCollector(k);
+                        }
+                        scan(store, queries, part, from, to);
+                        return part;
+                    }
+                }));
+            }
+            // range order, so ties rank by record id as in a single scan
+            for (Future<TopKCollector[]> f : futures) {
+                TopKCollector[] part = f.get();
+                if (tops == null) {
+                    tops = part;
+                } else {
+                    for (int q = 0; q < queries.length; q++) {
+                        tops[q].merge(part[q]);
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        for (TopKCollector top : tops) {
+            top.finish();
+        }
+        return tops;
+    }
+
+    // blocked scan of records [from, to) for every query
+    static void scan(HashStore store, long[] queries, TopKCollector[] tops,
+            int from, int to) {
+        HammingKernel kernel = HammingKernel.get();
+        // a heap store is scanned in place, others through a copied block
+        long[] array = store instanceof ArrayHashStore ? ((ArrayHashStore) store).hashArray()
+                : null;
+        long[] block = array != null ? null : new long[Math.min(BLOCK, Math.max(to - from, 1))];
+        for (int start = from; start < to; start += BLOCK) {
+            int len = Math.min(BLOCK, to - start);
+            long[] hashes = array;
+            int off = start;
+            if (array == null) {
+                HashSearch.copyBlock(store, start, block, len);
+                hashes = block;
+                off = 0;
+            }
+            for (int q = 0; q < queries.length; q++) {
+                kernel.topK(hashes, off, len, start, queries[q], tops[q]);
+            }
+        }
+        Metrics.scanned((long) (to - from) * queries.length);
+    }
+
+    /**
+     * Hashes files in parallel with one shared ImagePHash.
+     *
+     * @return hash per file, null where hashing failed (reason in errors)
+     */
+    public static PHash[] hashAll(final ImagePHash hasher, List<File> files,
+            int threads, String[] errors) throws InterruptedException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1: " + threads);
+        }
+        PHash[] hashes = new PHash[files.size()];
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<PHash>> futures = new ArrayList<Future<PHash>>();
+            for (final File f : files) {
+                futures.add(pool.submit(new Callable<PHash>() {
+                    public PHash call() throws Exception {
+                        return BulkIndexer.hash(hasher, f);
+                    }
+                }));
+            }
+            for (int i = 0; i < hashes.length; i++) {
+                try {
+                    hashes[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    errors[i] = String.valueOf(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return hashes;
+    }
+
+    static List<File> queryFiles(File dirOrList) throws IOException {
+        List<File> files = new ArrayList<File>();
+        if (dirOrList.isDirectory()) {
+            BulkIndexer.collect(dirOrList, files);
+            return files;
+        }
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(dirOrList), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) {
+                    files.add(new File(line));
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return files;
+    }
+
+    static void write(File out, HashStore store, List<File> files, PHash[] hashes,
+            String[] errors, TopKCollector[] tops) throws IOException {
+        boolean jsonl = out.getName().endsWith(".jsonl");
+        Writer w = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(out), StandardCharsets.UTF_8), 1 << 16);
+        try {
+            if (!jsonl) {
+                w.write("query,rank,name,distance,error\n");
+            }
+            int t = 0;
+            for (int i = 0; i < files.size(); i++) {
+                String path = files.get(i).getPath();
+                TopKCollector top = hashes[i] != null ? tops[t++] : null;
+                if (jsonl) {
+                    StringBuilder sb = new StringBuilder("{\"query\":");
+                    HashServer.quote(sb, path);
+                    if (top == null) {
+                        sb.append(",\"error\":");
+                        HashServer.quote(sb, errors[i]);
+                    } else {
+                        sb.append(",\"hash\":\"").append(hashes[i].toBitString())
+                                .append("\",\"results\":[");
+                        for (int a = 0; a < top.count(); a++) {
+                            sb.append(a > 0 ? ",{\"name\":" : "{\"name\":");
+                            HashServer.quote(sb, store.name(top.id(a)));
+                            sb.append(",\"distance\":").append(top.distance(a)).append('}');
+                        }
+                        sb.append(']');
+                    }
+                    w.write(sb.append("}\n").toString());
+                } else if (top == null) {
+                    // one row without results, so every query shows up in the output
+                    w.write(csv(path) + ",,,," + csv(errors[i]) + "\n");
+                } else {
+                    for (int a = 0; a < top.count(); a++) {
+                        w.write(csv(path) + "," + (a + 1) + "," + csv(store.name(top.id(a)))
+                                + "," + top.distance(a) + ",\n");
+                    }
+                }
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    static String csv(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            return s;
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("usage: BatchQuery <index .phx or hashtxt dir> <query dir or list file> <out.csv|out.jsonl> [k] [threads]");
+            return;
+        }
+        Metrics.fromSystemProperties();
+        int k = args.length > 3 ? Integer.parseInt(args[3]) : 12;
+        int threads = args.length > 4 ? Integer.parseInt(args[4])
+                : Runtime.getRuntime().availableProcessors();
+        if (k < 1 || threads < 1) {
+            System.out.println("k and threads must be >= 1");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        HashStore store = HashIndexFile.openStore(new File(args[0]));
+        List<File> files = queryFiles(new File(args[1]));
+        String[] errors = new String[files.size()];
+        if (store.words() != 1) {
+            throw new IOException("batch queries need hashes of up to "
+                    + PHash.MAX_LENGTH + " bits, the index holds " + store.hashLength());
+        }
+        // hash the queries the way the index was made, if it says so
+        ImagePHash hasher = new ImagePHash(store.config() != null ? store.config()
+                : HashConfig.DEFAULT);
+        HashCache cache = HashCache.fromSystemProperties(hasher);
+        PHash[] hashes = hashAll(hasher, files, threads, errors);
+        long hashed = System.currentTimeMillis();
+
+        int ok = 0;
+        for (PHash h : hashes) {
+            if (h != null) {
+                ok++;
+            }
+        }
+        long[] queries = new long[ok];
+        ok = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != null) {
+                if (hashes[i].length() != store.hashLength()) {
+                    throw new IOException("index holds " + store.hashLength()
+                            + "-bit hashes, queries have " + hashes[i].length());
+                }
+                queries[ok++] = hashes[i].bits();
+            } else {
+                System.err.println(files.get(i) + ": " + errors[i]);
+            }
+        }
+        TopKCollector[] tops = search(store, queries, k, threads);
+        long searched = System.currentTimeMillis();
+        write(new File(args[2]), store, files, hashes, errors, tops);
+
+        System.out.println(ok + " of " + files.size() + " queries against "
+                + store.size() + " hashes: hashing " + (hashed - start)
+                + " ms, scan " + (searched - hashed) + " ms");
+        if (cache != null) {
+            System.out.println("cache: " + cache.hits() + " hits, "
+                    + cache.misses() + " misses");
+            cache.close();
+        }
+    }
+}
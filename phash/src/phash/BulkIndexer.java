@@ -0,0 +1,649 @@
+package phash;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* function: hashes a whole image tree in parallel into hashtxt files.
+* Every directory under the root becomes one <directory name>.txt in the
+* output directory (paris/eiffel/*.jpg -> hashtxt/eiffel.txt), in the
+* same "<name> <bits>\r\n" format ImagePHash.main writes.
+*
+* Decode, resize and DCT run on a fixed pool of workers; finished hashes
+* go through a bounded queue to a single writer thread, which writes them
+* in batches and flushes once per batch.
+*
+* A run can be interrupted at any point and picked up again: after every
+* flushed batch the writer appends the relative paths it covers to
+* bulkindex.checkpoint in the output directory, whose first line is the
+* HashConfig of the run. While that file exists a new run resumes, if it
+* makes the same hash: lines of the .txt files not covered by the
+* checkpoint (a batch torn by the crash) are dropped, checkpointed images
+* are skipped and the rest is appended. A completed run deletes the
+* checkpoint, so the next one starts over.
+*
+* An image that cannot be hashed does not stop the run: it goes to
+* bulkindex.quarantine ("<relative path>\t<reason>") and, like a hashed
+* one, into the checkpoint, so a resumed run does not retry it. Each
+* image gets timeoutMillis (setTimeout) to hash; a decoder stuck longer is
+* abandoned on its own daemon thread and the worker moves on. Those threads
+* cannot be stopped, so after maxAbandoned of them (setMaxAbandoned) the
+* run stops, checkpointed, to be resumed in a fresh JVM.
+*
+* usage: BulkIndexer <image root> <out dir> [threads]
+*        [-Dphash.index.timeout=<seconds>, default 60, 0 for none]
+*/
+public class BulkIndexer {
+
+    private static final String[] EXTENSIONS = { ".jpg", ".jpeg", ".png",
+            ".bmp", ".gif" };
+
+    static final String CHECKPOINT = "bulkindex.checkpoint";
+    static final String QUARANTINE = "bulkindex.quarantine";
+    public static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+    public static final int DEFAULT_MAX_ABANDONED = 16;
+
+    private static final class Result {
+        final String group;
+        final String name;
+        final String path; // relative to the root, '/'-separated
+        final PHash hash; // null: quarantined
+        final String reason;
+
+        Result(String group, String name, String path, PHash hash, String reason) {
+            this.group = group;
+            this.name = name;
+            this.path = path;
+            this.hash = hash;
+            this.reason = reason;
+        }
+    }
+
+    // tells the writer that all workers are done
+    private static final Result END = new Result(null, null, null, null, null);
+
+    private final int threads;
+    private final int queueCapacity;
+    private final int batchSize;
+
+    // shared by all workers, see ImagePHash
+    private final ImagePHash hasher;
+
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile int maxAbandoned = DEFAULT_MAX_ABANDONED;
+
+    private final AtomicInteger hashed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger abandoned = new AtomicInteger();
+    private int skipped;
+
+    public BulkIndexer(int threads) {
+        this(threads, 1024, 256);
+    }
+
+    /**
+     * @param threads
+     *            number of hashing workers
+     * @param queueCapacity
+     *            hashes that may wait for the writer before workers block
+     * @param batchSize
+     *            hashes written per flush
+     */
+    public BulkIndexer(int threads, int queueCapacity, int batchSize) {
+        this(threads, queueCapacity, batchSize, HashConfig.DEFAULT);
+    }
+
+    /**
+     * @param threads
+     * @param queueCapacity
+     * @param batchSize
+     * @param config
+     *            which hash to compute, see HashConfig
+     */
+    public BulkIndexer(int threads, int queueCapacity, int batchSize, HashConfig config) {
+        if (threads < 1 || queueCapacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("threads, queueCapacity and batchSize must be >= 1");
+        }
+        this.hasher = new ImagePHash(config);
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param millis
+     *            time one image may take to hash before it is quarantined,
+     *            0 for no limit (hashed on the worker thread itself)
+     */
+    public void setTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("timeout must be >= 0: " + millis);
+        }
+        this.timeoutMillis = millis;
+    }
+
+    /**
+     * @param threads
+     *            decoder threads a run may abandon after a timeout before
+     *            it stops (see above); each may hold a decoded image
+     */
+    public void setMaxAbandoned(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("maxAbandoned must be >= 1: " + threads);
+        }
+        this.maxAbandoned = threads;
+    }
+
+    public int hashed() {
+        return this.hashed.get();
+    }
+
+    /**
+     * @return images quarantined in this run
+     */
+    public int failed() {
+        return this.failed.get();
+    }
+
+    /**
+     * @return images a resumed run found in the checkpoint
+     */
+    public int skipped() {
+        return this.skipped;
+    }
+
+    /**
+     * @return hashing threads given up on after a timeout (possibly still
+     *         running)
+     */
+    public int abandoned() {
+        return this.abandoned.get();
+    }
+
+    /**
+     * Hashes every image under root and writes one .txt per directory into
+     * outDir, replacing files of the same name, or resumes an interrupted
+     * run into outDir (see above).
+     *
+     * @return number of images hashed by this call
+     */
+    public int index(File root, File outDir) throws IOException, InterruptedException {
+        if (!root.isDirectory()) {
+            throw new IOException("not a directory: " + root);
+        }
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("cannot create " + outDir);
+        }
+        List<File> images = new ArrayList<File>();
+        collect(root, images);
+        int prefix = root.getPath().length() + 1;
+
+        HashConfig config = this.hasher.config();
+        File checkpoint = new File(outDir, CHECKPOINT);
+        boolean resume = checkpoint.isFile();
+        Set<String> done = new HashSet<String>();
+        HashConfig started = resume ? readCheckpoint(checkpoint, done) : null;
+        if (started != null && !started.equals(config)) {
+            throw new IOException(outDir + ": the interrupted run made " + started
+                    + " hashes, this one makes " + config + "; resume with -Dphash.hash="
+                    + started + " or delete " + CHECKPOINT);
+        }
+
+        // the .txt lines do not say which hash they hold, the sidecar does
+        File configFile = new File(outDir, HashTxt.CONFIG);
+        HashConfig written = configFile.isFile() ? HashTxt.parseConfig(configFile) : null;
+        if (written != null && !written.equals(config)) {
+            throw new IOException(outDir + " holds " + written + " hashes, this run makes "
+                    + config + "; use another out dir");
+        }
+        HashTxt.writeConfig(outDir, config);
+
+        if (resume) {
+            if (started == null) {
+                // torn while being created, so nothing is checkpointed yet
+                startCheckpoint(checkpoint, config);
+            }
+            Set<String> groups = new HashSet<String>();
+            Set<String> names = new HashSet<String>(); // group/name, what the .txt lines hold
+            for (File f : images) {
+                String group = f.getParentFile().getName();
+                groups.add(group);
+                String path = f.getPath().substring(prefix).replace(File.separatorChar, '/');
+                if (done.contains(path)) {
+                    names.add(group + "/" + f.getName());
+                }
+            }
+            repair(outDir, groups, names, done);
+        } else {
+            new File(outDir, QUARANTINE).delete();
+            startCheckpoint(checkpoint, config);
+        }
+
+        final BlockingQueue<Result> queue = new ArrayBlockingQueue<Result>(this.queueCapacity);
+        HashWriter writer = new HashWriter(queue, outDir, resume);
+        Thread writerThread = new Thread(writer, "phash-index-writer");
+        writerThread.start();
+
+        final ImagePHash hasher = this.hasher;
+        final long timeout = this.timeoutMillis;
+        // stuck decoders are at most maxAbandoned, plus one per worker past the check below
+        final int maxAbandoned = this.maxAbandoned;
+        final int abandonedBefore = this.abandoned.get();
+        final ExecutorService decoders = timeout > 0
+                ? newDecoderPool(maxAbandoned + 2 * this.threads) : null;
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        this.skipped = 0;
+        boolean interrupted = false;
+        try {
+            for (final File f : images) {
+                final String group = f.getParentFile().getName();
+                final String path = f.getPath().substring(prefix)
+                        .replace(File.separatorChar, '/');
+                if (done.contains(path)) {
+                    this.skipped++;
+                    continue;
+                }
+                pool.execute(new Runnable() {
+                    public void run() {
+                        if (BulkIndexer.this.abandoned.get() - abandonedBefore >= maxAbandoned) {
+                            return; // not checkpointed, the resumed run hashes it
+                        }
+                        Result r;
+                        try {
+                            PHash hash = decoders == null ? hash(hasher, f)
+                                    : BulkIndexer.this.hash(decoders, hasher, f, timeout);
+                            r = new Result(group, f.getName(), path, hash, null);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        } catch (Exception e) {
+                            r = new Result(group, f.getName(), path, null, e.toString());
+                        } catch (OutOfMemoryError e) {
+                            // a huge image; the heap is fine again once it is dropped
+                            r = new Result(group, f.getName(), path, null, e.toString());
+                        }
+                        try {
+                            queue.put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        if (r.hash != null) {
+                            BulkIndexer.this.hashed.incrementAndGet();
+                        } else {
+                            BulkIndexer.this.failed.incrementAndGet();
+                            System.err.println(f + ": " + r.reason);
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                // stop hashing, but still let the writer checkpoint what is done
+                pool.shutdownNow();
+                interrupted = true;
+            }
+            if (decoders != null) {
+                decoders.shutdownNow();
+            }
+            queue.put(END);
+            writerThread.join();
+        }
+        if (writer.error != null) {
+            throw writer.error;
+        }
+        if (interrupted) {
+            throw new InterruptedException("indexing interrupted, run again to resume");
+        }
+        int stuck = this.abandoned.get() - abandonedBefore;
+        if (stuck >= maxAbandoned) {
+            throw new IOException("stopped after " + stuck + " images timed out, their decoder"
+                    + " threads still run; see " + QUARANTINE + " and run again to resume");
+        }
+        if (!checkpoint.delete()) {
+            throw new IOException("cannot delete " + checkpoint);
+        }
+        return this.hashed.get();
+    }
+
+    // elastic daemon threads: one stuck in a decoder must not block the JVM or the pool
+    private static ExecutorService newDecoderPool(int max) {
+        return new ThreadPoolExecutor(0, max, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger n = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "phash-decoder-" + this.n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    // hashes f on a decoder thread, giving up after timeout ms
+    private PHash hash(ExecutorService decoders, final ImagePHash hasher, final File f,
+            long timeout) throws Exception {
+        Future<PHash> future = decoders.submit(new Callable<PHash>() {
+            public PHash call() throws Exception {
+                return hash(hasher, f);
+            }
+        });
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // ImageIO ignores interrupts, so the thread may well keep running
+            future.cancel(true);
+            this.abandoned.incrementAndGet();
+            throw new TimeoutException("no hash after " + timeout + " ms");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof OutOfMemoryError) {
+                throw (OutOfMemoryError) cause;
+            }
+            throw e;
+        }
+    }
+
+    // a new checkpoint: the HashConfig of the run, then paths as they are written
+    private static void startCheckpoint(File checkpoint, HashConfig config) throws IOException {
+        Files.write(checkpoint.toPath(), (config + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Reads the checkpointed paths into done. A last line torn by a crash
+     * is cut off, so new paths are appended after a complete line.
+     * Returns the HashConfig of the first line, null if that was torn.
+     */
+    static HashConfig readCheckpoint(File checkpoint, Set<String> done) throws IOException {
+        byte[] data = Files.readAllBytes(checkpoint.toPath());
+        int end = data.length;
+        while (end > 0 && data[end - 1] != '\n') {
+            end--;
+        }
+        if (end < data.length) {
+            RandomAccessFile raf = new RandomAccessFile(checkpoint, "rw");
+            try {
+                raf.setLength(end);
+            } finally {
+                raf.close();
+            }
+        }
+        String[] lines = new String(data, 0, end, StandardCharsets.UTF_8).split("\n");
+        if (end == 0) {
+            return null;
+        }
+        HashConfig config;
+        try {
+            config = HashConfig.parse(lines[0]);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(checkpoint + ": no hash config in the first line");
+        }
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].length() > 0) {
+                done.add(lines[i]);
+            }
+        }
+        return config;
+    }
+
+    /*
+     * Drops every line of the groups' .txt files and of the quarantine that
+     * the checkpoint does not cover: written after the last checkpoint, torn,
+     * or left over from an older run.
+     */
+    private static void repair(File outDir, Set<String> groups, Set<String> names,
+            Set<String> done) throws IOException {
+        for (String group : groups) {
+            File txt = new File(outDir, group + ".txt");
+            if (txt.isFile()) {
+                keepLines(txt, names, group + "/", ' ', true);
+            }
+        }
+        File quarantine = new File(outDir, QUARANTINE);
+        if (quarantine.isFile()) {
+            keepLines(quarantine, done, "", '\t', false);
+        }
+    }
+
+    // rewrites f with the complete lines whose key (prefix + text before sep) is in keys
+    private static void keepLines(File f, Set<String> keys, String prefix, char sep,
+            boolean lastSep) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(f), StandardCharsets.UTF_8));
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+                StandardCharsets.UTF_8), 1 << 16);
+        boolean changed = false;
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int at = lastSep ? line.lastIndexOf(sep) : line.indexOf(sep);
+                if (at > 0 && keys.contains(prefix + line.substring(0, at))) {
+                    w.write(line);
+                    w.write("\r\n");
+                } else {
+                    changed = true;
+                }
+            }
+        } finally {
+            br.close();
+            w.close();
+        }
+        if (changed || tmp.length() != f.length()) {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @return the hasher all workers share, to configure before index()
+     */
+    public ImagePHash hasher() {
+        return this.hasher;
+    }
+
+    static PHash hash(ImagePHash hasher, File f) throws Exception {
+        return hasher.getPHash(f);
+    }
+
+    static void collect(File dir, List<File> out) {
+        File[] fileList = dir.listFiles();
+        if (fileList == null) {
+            return;
+        }
+        Arrays.sort(fileList);
+        for (int i = 0; i < fileList.length; i++) {
+            if (fileList[i].isDirectory()) {
+                collect(fileList[i], out);
+            } else if (isImage(fileList[i].getName())) {
+                out.add(fileList[i]);
+            }
+        }
+    }
+
+    static boolean isImage(String fileName) {
+        String lower = fileName.toLowerCase();
+        for (String ext : EXTENSIONS) {
+            if (lower.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class HashWriter implements Runnable {
+        private final BlockingQueue<Result> queue;
+        private final File outDir;
+        private final boolean append;
+        private final Map<String, Writer> files = new HashMap<String, Writer>();
+        private Writer quarantine;
+        private Writer checkpoint;
+        volatile IOException error;
+
+        HashWriter(BlockingQueue<Result> queue, File outDir, boolean append) {
+            this.queue = queue;
+            this.outDir = outDir;
+            this.append = append;
+        }
+
+        public void run() {
+            List<Result> batch = new ArrayList<Result>(BulkIndexer.this.batchSize);
+            try {
+                boolean done = false;
+                while (!done) {
+                    batch.add(this.queue.take());
+                    this.queue.drainTo(batch, BulkIndexer.this.batchSize - 1);
+                    done = batch.get(batch.size() - 1) == END;
+                    if (done) {
+                        batch.remove(batch.size() - 1);
+                    }
+                    // after a write error keep taking results so workers blocked on put() can finish
+                    if (this.error == null) {
+                        try {
+                            this.write(batch);
+                        } catch (IOException e) {
+                            this.error = e;
+                        }
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                List<Writer> all = new ArrayList<Writer>(this.files.values());
+                all.add(this.quarantine);
+                all.add(this.checkpoint);
+                for (Writer w : all) {
+                    try {
+                        if (w != null) {
+                            w.close();
+                        }
+                    } catch (IOException e) {
+                        if (this.error == null) {
+                            this.error = e;
+                        }
+                    }
+                }
+            }
+        }
+
+        // hashes and quarantine first, then the checkpoint that covers them
+        private void write(List<Result> batch) throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (Result r : batch) {
+                if (r.hash != null) {
+                    Writer w = this.open(r.group);
+                    w.write(r.name);
+                    w.write(' ');
+                    w.write(r.hash.toBitString());
+                    w.write("\r\n");
+                } else {
+                    if (this.quarantine == null) {
+                        this.quarantine = this.open(QUARANTINE, true);
+                    }
+                    this.quarantine.write(r.path + "\t" + r.reason.replace('\n', ' ') + "\r\n");
+                }
+            }
+            for (Writer w : this.files.values()) {
+                w.flush();
+            }
+            if (this.quarantine != null) {
+                this.quarantine.flush();
+            }
+            if (this.checkpoint == null) {
+                this.checkpoint = this.open(CHECKPOINT, true);
+            }
+            for (Result r : batch) {
+                this.checkpoint.write(r.path + "\n");
+            }
+            this.checkpoint.flush();
+        }
+
+        private Writer open(String group) throws IOException {
+            Writer w = this.files.get(group);
+            if (w == null) {
+                w = this.open(group + ".txt", this.append);
+                this.files.put(group, w);
+            }
+            return w;
+        }
+
+        private Writer open(String file, boolean append) throws IOException {
+            return new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(this.outDir, file), append),
+                    StandardCharsets.UTF_8), 1 << 16);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: BulkIndexer <image root> <out dir> [threads]");
+            return;
+        }
+        Metrics.fromSystemProperties();
+        int threads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        // -Dphash.hash=dhash/8 etc. for another member of the hash family
+        BulkIndexer indexer = new BulkIndexer(threads, 1024, 256,
+                HashConfig.fromSystemProperties());
+        indexer.setTimeout(1000L * Integer.getInteger("phash.index.timeout",
+                (int) (DEFAULT_TIMEOUT_MILLIS / 1000)));
+        HashCache cache = HashCache.fromSystemProperties(indexer.hasher());
+        long start = System.currentTimeMillis();
+        indexer.index(new File(args[0]), new File(args[1]));
+        System.out.println("hashed " + indexer.hashed() + " images ("
+                + indexer.failed() + " quarantined, " + indexer.skipped()
+                + " already done) with " + threads + " threads in "
+                + (System.currentTimeMillis() - start) + " ms");
+        if (indexer.abandoned() > 0) {
+            System.out.println(indexer.abandoned() + " images timed out, see "
+                    + new File(args[1], QUARANTINE));
+        }
+        if (cache != null) {
+            System.out.println("cache: " + cache.hits() + " hits, "
+                    + cache.misses() + " misses");
+            cache.close();
+        }
+    }
+}
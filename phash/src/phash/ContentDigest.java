@@ -0,0 +1,65 @@
+package phash;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+* function: digest of the raw file bytes, to recognise content that has
+* already been hashed no matter what the file is called. SHA-1: every JVM
+* has it, it runs at several hundred MB/s, i.e. far below the cost of a
+* JPEG decode, and collisions do not happen by accident.
+*/
+public final class ContentDigest {
+
+    public static final String ALGORITHM = "SHA-1";
+    public static final int LENGTH = 20;
+
+    private ContentDigest() {
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    }
+
+    public static byte[] of(byte[] data, int offset, int length) {
+        MessageDigest md = newDigest();
+        md.update(data, offset, length);
+        return md.digest();
+    }
+
+    public static byte[] of(byte[] data) {
+        return of(data, 0, data.length);
+    }
+
+    public static byte[] of(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            MessageDigest md = newDigest();
+            byte[] buf = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+            return md.digest();
+        } finally {
+            in.close();
+        }
+    }
+
+    public static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
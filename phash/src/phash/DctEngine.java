@@ -0,0 +1,37 @@
+package phash;
+
+/*
+* function: pluggable 2-D DCT used by the pHash.
+* Every engine computes the same transform as the original applyDCT:
+*   F[u][v] = c(u) * c(v) / 4 * sum(i, j) f[i][j] * cos((2i+1)/(2N) * u * PI) * cos((2j+1)/(2N) * v * PI)
+* Only the top-left coefficients are ever read by the hash, so an engine is
+* allowed to leave the rest of the output at 0 (see SeparableDct).
+*/
+public interface DctEngine {
+
+    /**
+     * @return the N of the N x N blocks this engine transforms
+     */
+    int size();
+
+    /**
+     * @param f
+     *            N x N input block
+     * @return N x N coefficient block
+     */
+    double[][] applyDCT(double[][] f);
+
+    /**
+     * Same transform without allocating: writes into F and uses work as
+     * scratch. Coefficients the engine does not compute are left untouched,
+     * so reuse F only with the same engine.
+     *
+     * @param f
+     *            N x N input block
+     * @param F
+     *            N x N output block
+     * @param work
+     *            N x N scratch block
+     */
+    void applyDCT(double[][] f, double[][] F, double[][] work);
+}
@@ -0,0 +1,103 @@
+package phash;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.Scanner;
+
+/*
+* function: checks the DCT engines against ReferenceDct.
+* usage: DctVerify                      -> random 32x32 blocks, prints max coefficient error
+*        DctVerify <imageDir> <hashtxt> -> re-hashes every image listed in the hashtxt file
+*                                          with each engine and counts hashes that differ
+*                                          from the stored one or from the reference
+*/
+public class DctVerify {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            randomBlocks(32, 8, 200);
+            return;
+        }
+
+        String imageDir = args[0];
+        ImagePHash reference = new ImagePHash(new ReferenceDct(32));
+        ImagePHash full = new ImagePHash(new SeparableDct(32));
+        ImagePHash partial = new ImagePHash(new SeparableDct(32, 8));
+
+        int checked = 0;
+        int missing = 0;
+        int fullDiff = 0;
+        int partialDiff = 0;
+        int storedDiff = 0;
+
+        Scanner sc = new Scanner(new FileInputStream(args[1]), "UTF-8");
+        try {
+            while (sc.hasNextLine()) {
+                String[] s = sc.nextLine().trim().split(" ");
+                if (s.length < 2) {
+                    continue;
+                }
+                File img = new File(imageDir, s[0]);
+                if (!img.isFile()) {
+                    missing++;
+                    continue;
+                }
+                String ref = hash(reference, img);
+                if (!ref.equals(hash(full, img))) {
+                    fullDiff++;
+                }
+                if (!ref.equals(hash(partial, img))) {
+                    partialDiff++;
+                    System.out.println("partial mismatch: " + s[0]);
+                }
+                if (!ref.equals(s[1])) {
+                    storedDiff++;
+                }
+                checked++;
+            }
+        } finally {
+            sc.close();
+        }
+
+        System.out.println("images checked:        " + checked);
+        System.out.println("images missing:        " + missing);
+        System.out.println("separable != reference: " + fullDiff);
+        System.out.println("partial != reference:   " + partialDiff);
+        System.out.println("reference != stored:    " + storedDiff);
+    }
+
+    private static String hash(ImagePHash p, File f) throws Exception {
+        InputStream is = new FileInputStream(f);
+        try {
+            return p.getHash(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void randomBlocks(int size, int smallerSize, int rounds) {
+        DctEngine reference = new ReferenceDct(size);
+        DctEngine partial = new SeparableDct(size, smallerSize);
+        Random rnd = new Random(534);
+        double maxErr = 0;
+
+        for (int r = 0; r < rounds; r++) {
+            double[][] f = new double[size][size];
+            for (int x = 0; x < size; x++) {
+                for (int y = 0; y < size; y++) {
+                    f[x][y] = rnd.nextInt(256);
+                }
+            }
+            double[][] a = reference.applyDCT(f);
+            double[][] b = partial.applyDCT(f);
+            for (int u = 0; u < smallerSize; u++) {
+                for (int v = 0; v < smallerSize; v++) {
+                    maxErr = Math.max(maxErr, Math.abs(a[u][v] - b[u][v]));
+                }
+            }
+        }
+        System.out.println("blocks: " + rounds + "  max |F_ref - F_separable|: " + maxErr);
+    }
+}
@@ -0,0 +1,105 @@
+package phash;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/*
+* function: reports how close the LumaDownscaler hashes are to the default
+* AWT resize/grayscale pipeline, and how much time each takes after decode.
+* usage: DownscaleVerify <image dir> [max images] [samples...]
+*        samples default to 1 2 4, see ImagePHash.setDownscaleSamples
+*/
+public class DownscaleVerify {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("usage: DownscaleVerify <image dir> [max images] [samples...]");
+            return;
+        }
+        List<File> files = new ArrayList<File>();
+        BulkIndexer.collect(new File(args[0]), files);
+        int max = args.length > 1 ? Integer.parseInt(args[1]) : files.size();
+        int[] samples = { 1, 2, 4 };
+        if (args.length > 2) {
+            samples = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                samples[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        // decode once, the comparison is about the steps after ImageIO.read
+        List<BufferedImage> images = new ArrayList<BufferedImage>();
+        for (File f : files) {
+            if (images.size() == max) {
+                break;
+            }
+            BufferedImage img;
+            try {
+                img = ImageIO.read(f);
+            } catch (IOException e) {
+                // e.g. a truncated JPEG: leave it out, don't lose the report
+                System.err.println(f + ": " + e);
+                continue;
+            }
+            if (img != null) {
+                images.add(img);
+            }
+        }
+        int n = images.size();
+        if (n == 0) {
+            System.out.println("no images under " + args[0]);
+            return;
+        }
+
+        ImagePHash awt = new ImagePHash();
+        PHash[] expected = new PHash[n];
+        long awtNanos = 0;
+        for (int pass = 0; pass < 2; pass++) { // first pass warms up the JIT
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                expected[i] = awt.getPHash(images.get(i));
+            }
+            awtNanos = System.nanoTime() - start;
+        }
+        System.out.println("images: " + n);
+        System.out.println("awt pipeline: " + String.format("%.3f", awtNanos / 1e6 / n) + " ms/image");
+
+        for (int s : samples) {
+            ImagePHash fast = new ImagePHash();
+            fast.setDownscaleSamples(s);
+            int[] histogram = new int[PHash.MAX_LENGTH + 1];
+            long fastNanos = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                histogram = new int[PHash.MAX_LENGTH + 1];
+                long start = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    histogram[fast.getPHash(images.get(i)).distance(expected[i])]++;
+                }
+                fastNanos = System.nanoTime() - start;
+            }
+
+            long total = 0;
+            int worst = 0;
+            StringBuilder spread = new StringBuilder();
+            for (int d = 1; d < histogram.length; d++) {
+                if (histogram[d] > 0) {
+                    total += (long) d * histogram[d];
+                    worst = d;
+                    spread.append("  d" + d + ":" + histogram[d]);
+                }
+            }
+            System.out.println("samples " + s + ": "
+                    + String.format("%.3f", fastNanos / 1e6 / n) + " ms/image, identical "
+                    + String.format("%.1f", 100.0 * histogram[0] / n) + "%, mean distance "
+                    + String.format("%.2f", (double) total / n) + ", max " + worst);
+            if (spread.length() > 0) {
+                System.out.println("   " + spread);
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package phash;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+* function: all-pairs near-duplicate detection on the stored hashes only.
+* Every pair within the Hamming threshold is found without comparing all
+* n^2 pairs: the hashes are blocked into substring buckets (the
+* MultiIndexHash tables) and each record only verifies the candidates in
+* the buckets near its own substrings. The records are handed out to the
+* worker threads in chunks; all threads link the pairs they find in one
+* shared union-find forest (an AtomicIntegerArray, roots linked with a CAS
+* so the smaller root always wins), so there is one int per record however
+* many threads run and nothing to merge at the end. The result is the
+* connected components of the "within threshold" graph.
+*
+* usage: DuplicateFinder <hashtxt dir or .phx> <out.csv> [threshold] [threads]
+*        writes cluster,name for every record in a cluster of two or more,
+*        largest cluster first
+*/
+public class DuplicateFinder {
+
+    static final int DEFAULT_THRESHOLD = 6;
+
+    // records per unit of work handed to a thread
+    private static final int CHUNK = 1024;
+
+    private final HashStore store;
+    private final int threshold;
+    private final MultiIndexHash mih;
+    private final AtomicLong pairs = new AtomicLong();
+
+    /**
+     * @param store
+     * @param threshold
+     *            pairs with distance <= threshold are duplicates
+     */
+    public DuplicateFinder(HashStore store, int threshold) {
+        if (threshold < 0 || threshold > store.hashLength()) {
+            throw new IllegalArgumentException("threshold must be in 0.."
+                    + store.hashLength() + ": " + threshold);
+        }
+        this.store = store;
+        this.threshold = threshold;
+        this.mih = new MultiIndexHash(store);
+    }
+
+    /**
+     * @return number of pairs within the threshold found by the last
+     *         components() call
+     */
+    public long pairs() {
+        return this.pairs.get();
+    }
+
+    /**
+     * @return component of every record: the smallest record id in it
+     */
+    public int[] components(int threads) throws InterruptedException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1: " + threads);
+        }
+        final int n = this.store.size();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicIntegerArray parent = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++) {
+            parent.set(i, i);
+        }
+        this.pairs.set(0);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() {
+                        DuplicateFinder.this.link(next, n, parent);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        int[] components = new int[n];
+        for (int i = 0; i < n; i++) {
+            components[i] = find(parent, i);
+        }
+        return components;
+    }
+
+    // one worker: takes chunks of records until none are left
+    private void link(AtomicInteger next, int n, final AtomicIntegerArray parent) {
+        final long[] found = new long[1];
+        int from;
+        while ((from = next.getAndAdd(CHUNK)) < n) {
+            int to = Math.min(n, from + CHUNK);
+            for (int i = from; i < to; i++) {
+                final int a = i;
+                this.mih.radius(this.store.hash(i), this.threshold,
+                        new MultiIndexHash.HitVisitor() {
+                            public void hit(int id, int distance) {
+                                // each pair once, from its smaller id
+                                if (id > a) {
+                                    found[0]++;
+                                    union(parent, a, id);
+                                }
+                            }
+                        });
+            }
+        }
+        this.pairs.addAndGet(found[0]);
+    }
+
+    /*
+     * A parent is never larger than its child, so every link points to a
+     * smaller id and a concurrent path halving step (a CAS from the parent
+     * to the grandparent) can only skip over ancestors, never lose one.
+     */
+    static int find(AtomicIntegerArray parent, int x) {
+        int p;
+        while ((p = parent.get(x)) != x) {
+            int g = parent.get(p);
+            parent.compareAndSet(x, p, g);
+            x = g;
+        }
+        return x;
+    }
+
+    // the smaller root wins, so a component ends up labelled by its smallest id
+    static void union(AtomicIntegerArray parent, int a, int b) {
+        while (true) {
+            int ra = find(parent, a);
+            int rb = find(parent, b);
+            if (ra == rb) {
+                return;
+            }
+            // fails if the larger root got linked meanwhile: find again
+            if (ra < rb ? parent.compareAndSet(rb, rb, ra) : parent.compareAndSet(ra, ra, rb)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param components
+     *            result of components()
+     * @return record ids of every cluster with at least two members,
+     *         largest first
+     */
+    public static List<int[]> clusters(int[] components) {
+        int n = components.length;
+        int[] size = new int[n];
+        for (int i = 0; i < n; i++) {
+            size[components[i]]++;
+        }
+        int[][] members = new int[n][];
+        List<int[]> clusters = new ArrayList<int[]>();
+        int[] fill = new int[n];
+        for (int i = 0; i < n; i++) {
+            int c = components[i];
+            if (size[c] < 2) {
+                continue;
+            }
+            if (members[c] == null) {
+                members[c] = new int[size[c]];
+                clusters.add(members[c]);
+            }
+            members[c][fill[c]++] = i;
+        }
+        Collections.sort(clusters, new Comparator<int[]>() {
+            public int compare(int[] x, int[] y) {
+                return x.length != y.length ? y.length - x.length : x[0] - y[0];
+            }
+        });
+        return clusters;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: DuplicateFinder <hashtxt dir or .phx> <out.csv> [threshold] [threads]");
+            return;
+        }
+        int threshold = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_THRESHOLD;
+        int threads = args.length > 3 ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+
+        long start = System.currentTimeMillis();
+        HashStore store = ArrayHashStore.copyOf(HashIndexFile.openStore(new File(args[0])));
+        long loaded = System.currentTimeMillis();
+        DuplicateFinder finder = new DuplicateFinder(store, threshold);
+        List<int[]> clusters = clusters(finder.components(threads));
+        long done = System.currentTimeMillis();
+
+        int members = 0;
+        Writer w = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(args[1]), StandardCharsets.UTF_8), 1 << 16);
+        try {
+            w.write("cluster,name\n");
+            for (int c = 0; c < clusters.size(); c++) {
+                for (int id : clusters.get(c)) {
+                    w.write((c + 1) + "," + BatchQuery.csv(store.name(id)) + "\n");
+                    members++;
+                }
+            }
+        } finally {
+            w.close();
+        }
+        System.out.println(store.size() + " hashes, threshold " + threshold + ": "
+                + finder.pairs() + " pairs, " + clusters.size() + " clusters covering "
+                + members + " records (load " + (loaded - start) + " ms, search "
+                + (done - loaded) + " ms)");
+    }
+}
@@ -0,0 +1,24 @@
+package phash;
+
+/*
+* function: a HashStore records can be appended to, in memory
+* (ArrayHashStore) or off the heap (OffHeapHashStore). Readers such as
+* HashTxt fill either one.
+*/
+public interface GrowableHashStore extends HashStore {
+
+    /**
+     * Appends a record to a store of hashes up to 64 bits.
+     */
+    void add(String name, long hash);
+
+    /**
+     * Appends a record; hash.length() must be hashLength().
+     */
+    void add(String name, PHash hash);
+
+    /**
+     * Records which hash the records were made with, see HashIndexFile.
+     */
+    void setConfig(HashConfig config);
+}
@@ -0,0 +1,83 @@
+package phash;
+
+/*
+* function: the inner Hamming scan over a dense long[] of single-word
+* hashes (an ArrayHashStore), as a pluggable kernel like DctEngine.
+*
+* get() picks VectorHammingKernel, which works on SIMD lanes through the
+* jdk.incubator.vector API, when that class was built (JDK 17+, see the
+* vector profile in pom.xml) and the JVM runs with
+* --add-modules jdk.incubator.vector; otherwise, or with
+* -Dphash.kernel=scalar, the plain loop of ScalarHammingKernel.
+* Both report exactly the same records; KernelVerify checks that and
+* measures them.
+*/
+public interface HammingKernel {
+
+    /**
+     * @return short name for logs and benchmarks
+     */
+    String name();
+
+    /**
+     * Offers hashes[off .. off + len) to top as records firstId,
+     * firstId + 1, ... (without finishing it). Same as offering them one by
+     * one in that order.
+     */
+    void topK(long[] hashes, int off, int len, int firstId, long query, TopKCollector top);
+
+    /**
+     * Like topK, with each record at its distance to the nearest of
+     * queries (e.g. the orientations of one image, see Orientation).
+     */
+    void topKAny(long[] hashes, int off, int len, int firstId, long[] queries,
+            TopKCollector top);
+
+    /**
+     * Reports every record of hashes[off .. off + len) (ids as in topK)
+     * within maxDistance of query, in id order.
+     */
+    void within(long[] hashes, int off, int len, int firstId, long query, int maxDistance,
+            MultiIndexHash.HitVisitor visitor);
+
+    /**
+     * @return the kernel selected for this JVM, see above
+     */
+    static HammingKernel get() {
+        return Kernels.DEFAULT;
+    }
+
+    // lazily resolved once per JVM
+    final class Kernels {
+        static final HammingKernel DEFAULT = select(System.getProperty("phash.kernel", "vector"));
+
+        private Kernels() {
+        }
+
+        static HammingKernel select(String name) {
+            if ("scalar".equals(name)) {
+                return new ScalarHammingKernel();
+            }
+            if (!"vector".equals(name)) {
+                throw new IllegalArgumentException("phash.kernel must be scalar or vector: " + name);
+            }
+            HammingKernel vector = vector();
+            return vector != null ? vector : new ScalarHammingKernel();
+        }
+
+        /**
+         * @return the SIMD kernel, or null if it was not built or the
+         *         incubator module is not loaded
+         */
+        static HammingKernel vector() {
+            try {
+                return (HammingKernel) Class.forName("phash.VectorHammingKernel")
+                        .getConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                return null;
+            } catch (LinkageError e) {
+                return null; // jdk.incubator.vector not in the module graph
+            }
+        }
+    }
+}
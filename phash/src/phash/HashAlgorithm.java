@@ -0,0 +1,31 @@
+package phash;
+
+/*
+* function: the image hashes ImagePHash can compute, see HashConfig.
+*   PHASH  DCT of a (4 side) x (4 side) gray thumbnail, one bit per low
+*          frequency above their mean; (side - 1)^2 bits, 49 for side 8
+*   AHASH  side x side gray thumbnail, one bit per pixel above the mean;
+*          side^2 bits, no DCT, the cheapest
+*   DHASH  (side + 1) x (side + 1) thumbnail, one bit per horizontal
+*          neighbour pair: right brighter than left; side^2 bits, no DCT
+* The codes are what index files store; never renumber them.
+*/
+public enum HashAlgorithm {
+
+    PHASH(1), AHASH(2), DHASH(3);
+
+    final int code;
+
+    HashAlgorithm(int code) {
+        this.code = code;
+    }
+
+    static HashAlgorithm forCode(int code) {
+        for (HashAlgorithm a : values()) {
+            if (a.code == code) {
+                return a;
+            }
+        }
+        return null;
+    }
+}
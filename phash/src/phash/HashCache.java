@@ -0,0 +1,295 @@
+package phash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+* function: content-addressed pHash cache. Maps the ContentDigest of the
+* raw file bytes to the hash, so the same bytes are decoded once no matter
+* how often or under which name they show up (mirrored directories,
+* re-uploads, the same query image run after run).
+*
+* In memory it is an LRU map capped at maxEntries. With a file it is also
+* persistent: every new hash is appended as one fixed-size record, and the
+* file is rewritten from the LRU map (dropping evicted and duplicate
+* records) once it holds twice maxEntries records.
+*
+* A hash is only valid for the ImagePHash settings that made it, so the
+* file header carries ImagePHash.settings(); a file written with other
+* settings is started over, and ImagePHash.setCache refuses a cache built
+* for other settings.
+*
+* layout (big-endian): int magic 'PHHC', int version, UTF settings, then
+* records of byte[20] SHA-1, short hash length, long[PHash.words] hash.
+*
+* Attach it with ImagePHash.setCache; the command line tools do that when
+* run with -Dphash.cache=<file> [-Dphash.cache.entries=<n>].
+*/
+public class HashCache {
+
+    static final int MAGIC = 0x50484843; // "PHHC"
+    static final int VERSION = 2;
+    public static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+
+    // digest bytes as a map key
+    private static final class Key {
+        final byte[] digest;
+        final int hash;
+
+        Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(this.digest, ((Key) o).digest);
+        }
+    }
+
+    private final int maxEntries;
+    private final String settings;
+    private final File file; // null: memory only
+    private final Map<Key, PHash> map;
+    private DataOutputStream out;
+    private int records; // records in the file
+    private long hits;
+    private long misses;
+
+    /**
+     * Memory-only cache.
+     *
+     * @param maxEntries
+     * @param settings
+     *            ImagePHash.settings() of the hasher it will be used with
+     */
+    public HashCache(int maxEntries, String settings) {
+        this(maxEntries, settings, null);
+    }
+
+    /**
+     * Cache backed by file, which is loaded here (most recent maxEntries
+     * records) and created if missing.
+     *
+     * @param file
+     * @param maxEntries
+     * @param settings
+     *            ImagePHash.settings() of the hasher it will be used with
+     * @throws IOException
+     */
+    public HashCache(File file, int maxEntries, String settings) throws IOException {
+        this(maxEntries, settings, file);
+        this.load();
+        if (this.records > 2L * maxEntries) {
+            this.rewrite();
+        }
+    }
+
+    private HashCache(final int maxEntries, String settings, File file) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be >= 1: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.settings = settings;
+        this.file = file;
+        this.map = new LinkedHashMap<Key, PHash>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, PHash> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Opens the cache named by -Dphash.cache (if set) and attaches it to
+     * hasher.
+     *
+     * @param hasher
+     * @return the cache, or null if the property is not set
+     * @throws IOException
+     */
+    public static HashCache fromSystemProperties(ImagePHash hasher) throws IOException {
+        String path = System.getProperty("phash.cache");
+        if (path == null) {
+            return null;
+        }
+        HashCache cache = new HashCache(new File(path), Integer.getInteger(
+                "phash.cache.entries", DEFAULT_MAX_ENTRIES), hasher.settings());
+        hasher.setCache(cache);
+        return cache;
+    }
+
+    public String settings() {
+        return this.settings;
+    }
+
+    public synchronized int size() {
+        return this.map.size();
+    }
+
+    public synchronized long hits() {
+        return this.hits;
+    }
+
+    public synchronized long misses() {
+        return this.misses;
+    }
+
+    /**
+     * @param digest
+     *            ContentDigest of the image bytes
+     * @return the cached hash, or null
+     */
+    public synchronized PHash get(byte[] digest) {
+        PHash hash = this.map.get(new Key(digest));
+        if (hash != null) {
+            this.hits++;
+        } else {
+            this.misses++;
+        }
+        return hash;
+    }
+
+    public synchronized void put(byte[] digest, PHash hash) throws IOException {
+        if (digest.length != ContentDigest.LENGTH) {
+            throw new IllegalArgumentException("digest must be "
+                    + ContentDigest.LENGTH + " bytes");
+        }
+        if (this.map.put(new Key(digest.clone()), hash) != null || this.file == null) {
+            return;
+        }
+        DataOutputStream out = this.out();
+        write(out, digest, hash);
+        out.flush();
+        this.records++;
+        if (this.records > 2L * this.maxEntries) {
+            this.rewrite();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (this.out != null) {
+            this.out.close();
+            this.out = null;
+        }
+    }
+
+    private static void write(DataOutputStream out, byte[] digest, PHash hash)
+            throws IOException {
+        out.write(digest);
+        out.writeShort(hash.length());
+        for (int w = 0; w < hash.words(); w++) {
+            out.writeLong(hash.word(w));
+        }
+    }
+
+    private DataOutputStream out() throws IOException {
+        if (this.out == null) {
+            boolean empty = this.file.length() == 0;
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(this.file, true), 1 << 12));
+            if (empty) {
+                this.writeHeader(this.out);
+            }
+        }
+        return this.out;
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(this.settings);
+    }
+
+    // reads the file into the LRU map, oldest record first
+    private void load() throws IOException {
+        if (!this.file.isFile() || this.file.length() == 0) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.file), 1 << 16));
+        boolean stale = false;
+        long good = 0; // bytes of header and complete records
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(this.file + ": not a hash cache (bad magic)");
+            }
+            stale = in.readInt() != VERSION || !this.settings.equals(in.readUTF());
+            good = 10 + this.settings.getBytes(StandardCharsets.UTF_8).length;
+            while (!stale) {
+                byte[] digest = new byte[ContentDigest.LENGTH];
+                in.readFully(digest);
+                int length = in.readUnsignedShort();
+                long[] words = new long[PHash.words(length)];
+                for (int w = 0; w < words.length; w++) {
+                    words[w] = in.readLong();
+                }
+                this.map.put(new Key(digest), words.length == 1
+                        ? new PHash(words[0], length) : new PHash(words, length));
+                this.records++;
+                good += ContentDigest.LENGTH + 2 + 8 * words.length;
+            }
+        } catch (EOFException e) {
+            // end of file, or a record torn by a crash: rewritten below
+            stale = this.file.length() != good;
+        } finally {
+            in.close();
+        }
+        if (stale) {
+            this.rewrite();
+        }
+    }
+
+    // replaces the file by the current map, least recently used first
+    private void rewrite() throws IOException {
+        this.close();
+        File tmp = new File(this.file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 1 << 16));
+        try {
+            this.writeHeader(out);
+            for (Map.Entry<Key, PHash> e : this.map.entrySet()) {
+                write(out, e.getKey().digest, e.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        this.records = this.map.size();
+    }
+
+    /**
+     * Reads a stream to the end.
+     */
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+        byte[] buf = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
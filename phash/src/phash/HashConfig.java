@@ -0,0 +1,122 @@
+package phash;
+
+/*
+* function: which hash an ImagePHash computes: the algorithm and the side
+* of its bit grid, which sets the hash length (see HashAlgorithm):
+*   phash/8   49 bits, the original hash and the default
+*   phash/12  121 bits      phash/17  256 bits
+*   ahash/8   64 bits       dhash/8   64 bits
+* Written as "<algorithm>/<side>", e.g. for -Dphash.hash=dhash/8.
+* Immutable.
+*/
+public final class HashConfig {
+
+    public static final HashConfig DEFAULT = new HashConfig(HashAlgorithm.PHASH, 8);
+
+    static final int MIN_SIDE = 2;
+    static final int MAX_SIDE = 32;
+
+    private final HashAlgorithm algorithm;
+    private final int side;
+
+    public HashConfig(HashAlgorithm algorithm, int side) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("no algorithm");
+        }
+        if (side < MIN_SIDE || side > MAX_SIDE) {
+            throw new IllegalArgumentException("side must be in " + MIN_SIDE + ".."
+                    + MAX_SIDE + ": " + side);
+        }
+        this.algorithm = algorithm;
+        this.side = side;
+    }
+
+    /**
+     * Smallest configuration of algorithm with at least minBits bits, e.g.
+     * forBits(PHASH, 256) is phash/17.
+     */
+    public static HashConfig forBits(HashAlgorithm algorithm, int minBits) {
+        for (int side = MIN_SIDE; side <= MAX_SIDE; side++) {
+            HashConfig c = new HashConfig(algorithm, side);
+            if (c.bits() >= minBits) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(algorithm + " has no " + minBits + "-bit variant");
+    }
+
+    /**
+     * @param s
+     *            "<algorithm>/<side>", or just the algorithm for side 8
+     * @return HashConfig
+     */
+    public static HashConfig parse(String s) {
+        int slash = s.indexOf('/');
+        String name = (slash < 0 ? s : s.substring(0, slash)).trim().toUpperCase();
+        HashAlgorithm algorithm;
+        try {
+            algorithm = HashAlgorithm.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown hash algorithm: " + s);
+        }
+        int side = slash < 0 ? 8 : Integer.parseInt(s.substring(slash + 1).trim());
+        return new HashConfig(algorithm, side);
+    }
+
+    /**
+     * @return the configuration named by -Dphash.hash, DEFAULT if unset
+     */
+    public static HashConfig fromSystemProperties() {
+        String s = System.getProperty("phash.hash");
+        return s == null ? DEFAULT : parse(s);
+    }
+
+    public HashAlgorithm algorithm() {
+        return this.algorithm;
+    }
+
+    public int side() {
+        return this.side;
+    }
+
+    /**
+     * @return hash length in bits
+     */
+    public int bits() {
+        if (this.algorithm == HashAlgorithm.PHASH) {
+            return (this.side - 1) * (this.side - 1);
+        }
+        return this.side * this.side;
+    }
+
+    // side of the gray thumbnail the hash is computed from
+    int sampleSize() {
+        switch (this.algorithm) {
+        case PHASH:
+            return 4 * this.side;
+        case DHASH:
+            return this.side + 1;
+        default:
+            return this.side;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof HashConfig)) {
+            return false;
+        }
+        HashConfig other = (HashConfig) o;
+        return this.algorithm == other.algorithm && this.side == other.side;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.algorithm.hashCode() * 31 + this.side;
+    }
+
+    @Override
+    public String toString() {
+        return this.algorithm.name().toLowerCase() + "/" + this.side;
+    }
+}
@@ -0,0 +1,214 @@
+package phash;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+* function: compact binary hash index (.phx) and the hashtxt -> .phx converter.
+*
+* layout (big-endian):
+*   0   int   magic 'PHIX'
+*   4   int   version
+*   8   int   count
+*   12  int   hash length in bits
+*   16  long  offset of the name table
+*   24  long  offset of the name blob
+*   32  int   HashAlgorithm code, 0 if not recorded
+*   36  int   HashConfig side
+*   40  long[count * words] packed hashes (PHash words, words = 1 up to 64 bits)
+*   ..  long[count + 1] name table: start of name i in the blob, last = blob length
+*   ..  byte[]          name blob: all names UTF-8 encoded back to back
+*
+* The hashes sit in one dense array so a scan touches nothing else; names
+* are only decoded for the records that are actually reported.
+* Version 1 files (no algorithm fields, hashes at 32, at most 64 bits) are
+* still read.
+*
+* usage: HashIndexFile <hashtxt dir or .txt file> <out.phx>
+*        the hash is the one recorded next to the files (HashTxt.CONFIG);
+*        -Dphash.hash=dhash/8 names it for files written without one
+*/
+public class HashIndexFile {
+
+    static final int MAGIC = 0x50484958; // "PHIX"
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 40;
+    static final int V1_HEADER_SIZE = 32;
+
+    private HashIndexFile() {
+    }
+
+    public static void write(HashStore store, File out) throws IOException {
+        int count = store.size();
+        byte[][] names = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            names[i] = store.name(i).getBytes(StandardCharsets.UTF_8);
+        }
+
+        int words = store.words();
+        HashConfig config = store.config();
+        long nameTable = HEADER_SIZE + 8L * count * words;
+        long nameBlob = nameTable + 8L * (count + 1);
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(out), 1 << 16));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(count);
+            dos.writeInt(store.hashLength());
+            dos.writeLong(nameTable);
+            dos.writeLong(nameBlob);
+            dos.writeInt(config != null ? config.algorithm().code : 0);
+            dos.writeInt(config != null ? config.side() : 0);
+
+            for (int i = 0; i < count; i++) {
+                for (int w = 0; w < words; w++) {
+                    dos.writeLong(store.word(i, w));
+                }
+            }
+            long offset = 0;
+            for (int i = 0; i < count; i++) {
+                dos.writeLong(offset);
+                offset += names[i].length;
+            }
+            dos.writeLong(offset);
+            for (int i = 0; i < count; i++) {
+                dos.write(names[i]);
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Maps an index file read-only. Nothing but the header is read here;
+     * the OS pages hashes and names in as they are touched.
+     *
+     * @param file
+     * @return MappedHashStore
+     * @throws IOException
+     */
+    public static MappedHashStore open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            long length = ch.size();
+            if (length < V1_HEADER_SIZE) {
+                throw new IOException(file + ": not a hash index (too short)");
+            }
+            MappedByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(length, HEADER_SIZE));
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + ": not a hash index (bad magic)");
+            }
+            int version = header.getInt(4);
+            if (version != VERSION && version != 1) {
+                throw new IOException(file + ": unsupported index version " + version);
+            }
+            int headerSize = version == 1 ? V1_HEADER_SIZE : HEADER_SIZE;
+            if (length < headerSize) {
+                throw new IOException(file + ": not a hash index (too short)");
+            }
+            int count = header.getInt(8);
+            int hashLength = header.getInt(12);
+            long nameTable = header.getLong(16);
+            long nameBlob = header.getLong(24);
+            HashConfig config = null;
+            if (version > 1 && header.getInt(32) != 0) {
+                HashAlgorithm algorithm = HashAlgorithm.forCode(header.getInt(32));
+                if (algorithm == null) {
+                    throw new IOException(file + ": unknown hash algorithm "
+                            + header.getInt(32));
+                }
+                try {
+                    config = new HashConfig(algorithm, header.getInt(36));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ": corrupt index header");
+                }
+                if (config.bits() != hashLength) {
+                    throw new IOException(file + ": corrupt index header");
+                }
+            }
+            if (hashLength < 0 || (version == 1 && hashLength > PHash.MAX_LENGTH)) {
+                throw new IOException(file + ": corrupt index header");
+            }
+            int words = PHash.words(hashLength);
+            if (count < 0 || nameTable != headerSize + 8L * count * words
+                    || nameBlob != nameTable + 8L * (count + 1)
+                    || nameBlob > length) {
+                throw new IOException(file + ": corrupt index header");
+            }
+            if (length - nameBlob > Integer.MAX_VALUE) {
+                throw new IOException(file + ": name blob larger than 2GB");
+            }
+
+            MappedByteBuffer hashes = ch.map(FileChannel.MapMode.READ_ONLY,
+                    headerSize, 8L * count * words);
+            MappedByteBuffer offsets = ch.map(FileChannel.MapMode.READ_ONLY,
+                    nameTable, 8L * (count + 1));
+            MappedByteBuffer blob = ch.map(FileChannel.MapMode.READ_ONLY,
+                    nameBlob, length - nameBlob);
+            if (offsets.getLong(8 * count) != length - nameBlob) {
+                throw new IOException(file + ": corrupt name table");
+            }
+            // the mappings stay valid after the channel is closed
+            return new MappedHashStore(count, hashLength, config,
+                    hashes.asLongBuffer(), offsets.asLongBuffer(), blob);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Opens whatever a catalogue path points at: a .phx index is mapped,
+     * an IncrementalIndex directory is replayed and a hashtxt directory or
+     * .txt file is parsed into the heap (or off it, -Dphash.store=offheap).
+     *
+     * @param file
+     * @return HashStore
+     * @throws IOException
+     */
+    public static HashStore openStore(File file) throws IOException {
+        if (file.isFile() && !file.getName().endsWith(".txt")) {
+            return open(file);
+        }
+        if (IncrementalIndex.isIndexDir(file)) {
+            return IncrementalIndex.load(file);
+        }
+        return OffHeapHashStore.requested() ? HashTxt.loadOffHeap(file) : HashTxt.load(file);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: HashIndexFile <hashtxt dir or .txt file> <out.phx>");
+            System.out.println("       -Dphash.hash=<algorithm>/<side> names the hash the files hold (HashConfig)");
+            System.out.println("       where no " + HashTxt.CONFIG + " or <file>.config records it");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        ArrayHashStore store = HashTxt.load(new File(args[0]));
+        // the bit count alone is ambiguous: phash/8, ahash/7 and dhash/7 all have 49 bits
+        if (System.getProperty("phash.hash") != null) {
+            HashConfig given = HashConfig.fromSystemProperties();
+            if (store.config() != null && !store.config().equals(given)) {
+                throw new IOException(args[0] + " holds " + store.config() + " hashes, not " + given);
+            }
+            store.setConfig(given);
+        } else if (store.config() == null) {
+            throw new IOException(args[0] + ": no " + HashTxt.CONFIG
+                    + " says which hash the files hold, give it with -Dphash.hash=<algorithm>/<side>");
+        }
+        write(store, new File(args[1]));
+        System.out.println("wrote " + store.size() + " hashes ("
+                + store.hashLength() + " bits) to " + args[1] + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+}
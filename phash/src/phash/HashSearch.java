@@ -0,0 +1,150 @@
+package phash;
+
+/*
+* function: brute-force nearest-neighbour queries over a HashStore.
+* One pass over the packed hashes, one XOR + popcount per record, ranked
+* by a TopKCollector; works for any store size. In-heap stores are scanned
+* by the HammingKernel (SIMD where available).
+*/
+public class HashSearch {
+
+    static final int BLOCK = 4096;
+
+    private HashSearch() {
+    }
+
+    /**
+     * @param store
+     * @param query
+     *            PHash bits of the query image
+     * @param k
+     * @return the k nearest records, already finished
+     */
+    public static TopKCollector topK(HashStore store, long query, int k) {
+        long start = Metrics.start();
+        TopKCollector top = new TopKCollector(k);
+        scan(store, query, top);
+        top.finish();
+        Metrics.stop(Metrics.QUERY, start);
+        return top;
+    }
+
+    /**
+     * One scan for several queries at once: every record is ranked by its
+     * distance to the nearest of them. With the hashes of
+     * ImagePHash.getOrientedPHashes this finds mirrored and rotated copies
+     * for the price of about one scan.
+     *
+     * @param store
+     * @param queries
+     *            PHash bits, at least one
+     * @param k
+     * @return the k nearest records, already finished
+     */
+    public static TopKCollector topKAny(HashStore store, long[] queries, int k) {
+        if (queries.length == 0) {
+            throw new IllegalArgumentException("no queries");
+        }
+        long start = Metrics.start();
+        TopKCollector top = new TopKCollector(k);
+        int n = store.size();
+        Metrics.scanned(n);
+        HammingKernel kernel = HammingKernel.get();
+        if (store instanceof ArrayHashStore && store.words() == 1) {
+            kernel.topKAny(((ArrayHashStore) store).hashArray(), 0, n, 0, queries, top);
+        } else {
+            long[] block = new long[Math.min(n, BLOCK)];
+            for (int from = 0; from < n; from += BLOCK) {
+                int len = Math.min(BLOCK, n - from);
+                copyBlock(store, from, block, len);
+                kernel.topKAny(block, 0, len, from, queries, top);
+            }
+        }
+        top.finish();
+        Metrics.stop(Metrics.QUERY, start);
+        return top;
+    }
+
+    /**
+     * Two-stage search: the candidates nearest records by a cheap hash
+     * (e.g. a dHash index), re-ranked by the exact distance of a second
+     * hash of the same images (e.g. a pHash index, any length). Record i
+     * must be the same image in both stores.
+     *
+     * @param coarse
+     *            prefilter store, up to 64 bits
+     * @param coarseQuery
+     * @param fine
+     *            re-ranking store
+     * @param fineQuery
+     * @param candidates
+     *            records kept by the prefilter, >= k
+     * @param k
+     * @return the k best candidates by fine distance, already finished
+     */
+    public static TopKCollector rerank(HashStore coarse, long coarseQuery,
+            HashStore fine, PHash fineQuery, int candidates, int k) {
+        if (coarse.size() != fine.size()) {
+            throw new IllegalArgumentException("stores differ in size: "
+                    + coarse.size() + " / " + fine.size());
+        }
+        TopKCollector pre = topK(coarse, coarseQuery, Math.max(candidates, k));
+        TopKCollector top = new TopKCollector(k);
+        for (int a = 0; a < pre.count(); a++) {
+            int id = pre.id(a);
+            if (!coarse.name(id).equals(fine.name(id))) {
+                throw new IllegalArgumentException("record " + id + " is "
+                        + coarse.name(id) + " / " + fine.name(id));
+            }
+            top.offer(distance(fine, id, fineQuery), id);
+        }
+        top.finish();
+        return top;
+    }
+
+    /**
+     * @return Hamming distance of record i to query, any hash length
+     */
+    public static int distance(HashStore store, int i, PHash query) {
+        if (query.length() != store.hashLength()) {
+            throw new IllegalArgumentException("cannot compare a " + query.length()
+                    + "-bit hash with " + store.hashLength() + "-bit records");
+        }
+        int d = 0;
+        for (int w = 0; w < query.words(); w++) {
+            d += PHash.distance(store.word(i, w), query.word(w));
+        }
+        return d;
+    }
+
+    /**
+     * Offers every record of store to top (without finishing it).
+     */
+    public static void scan(HashStore store, long query, TopKCollector top) {
+        int n = store.size();
+        Metrics.scanned(n);
+        HammingKernel kernel = HammingKernel.get();
+        if (store instanceof ArrayHashStore && store.words() == 1) {
+            kernel.topK(((ArrayHashStore) store).hashArray(), 0, n, 0, query, top);
+            return;
+        }
+        // other stores are copied block by block into a cache-sized buffer
+        long[] block = new long[Math.min(n, BLOCK)];
+        for (int from = 0; from < n; from += BLOCK) {
+            int len = Math.min(BLOCK, n - from);
+            copyBlock(store, from, block, len);
+            kernel.topK(block, 0, len, from, query, top);
+        }
+    }
+
+    // hashes of records from .. from + len - 1 into block, for the kernels
+    static void copyBlock(HashStore store, int from, long[] block, int len) {
+        if (store instanceof OffHeapHashStore) {
+            ((OffHeapHashStore) store).copyHashes(from, block, len);
+            return;
+        }
+        for (int i = 0; i < len; i++) {
+            block[i] = store.hash(from + i);
+        }
+    }
+}
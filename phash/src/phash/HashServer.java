@@ -0,0 +1,309 @@
+package phash;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.management.JMException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+* function: long-running query server over a resident hash index.
+* The index is loaded once into primitive arrays (ArrayHashStore) and
+* every request is answered from memory:
+*
+*   GET  /query?hash=<bits>&k=12   top-K for a precomputed hash
+*   POST /query?k=12               top-K for the image in the request body
+*   ...&shard=notredame,louvre     only those landmarks (hashtxt directory)
+*   POST /query?orient=1           also finds mirrored and rotated copies,
+*                                  one scan for all eight (Orientation);
+*                                  takes &shard= like any query
+*   GET  /health                   record count
+*
+* results are JSON: {"query":"0101...","micros":85,"results":[{"name":"..","distance":10},...]}
+* A hashtxt directory is served as a ShardedIndex, one shard per file,
+* each query scanning its shards in parallel on the common ForkJoinPool.
+* Requests run on virtual threads when the JVM has them (Java 21+), else
+* on a cached thread pool. Listens on the loopback interface only.
+*
+* usage: HashServer <index .phx or hashtxt dir> [port]
+*/
+public class HashServer {
+
+    static final int DEFAULT_PORT = 8534;
+    static final int DEFAULT_K = 12;
+    static final int MAX_K = 1000;
+    static final int MAX_IMAGE_BYTES = 64 << 20;
+
+    private final HashStore store;
+    private final ImagePHash hasher;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param store
+     *            hashes of up to 64 bits; posted images are hashed with the
+     *            store's config(), the default pHash if it records none
+     */
+    public HashServer(HashStore store) {
+        if (store.words() != 1) {
+            throw new IllegalArgumentException("HashServer serves hashes of up to "
+                    + PHash.MAX_LENGTH + " bits, not " + store.hashLength());
+        }
+        this.store = store;
+        this.hasher = new ImagePHash(store.config() != null ? store.config()
+                : HashConfig.DEFAULT);
+    }
+
+    public HashStore store() {
+        return this.store;
+    }
+
+    public void start(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/query", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                HashServer.this.query(ex);
+            }
+        });
+        this.server.createContext("/health", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                send(ex, 200, "{\"records\":" + HashServer.this.store.size() + "}");
+            }
+        });
+        this.executor = newRequestExecutor();
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    public int port() {
+        return this.server.getAddress().getPort();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdown();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() without needing Java 21 to compile
+    static ExecutorService newRequestExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void query(HttpExchange ex) throws IOException {
+        try {
+            long start = System.nanoTime();
+            Map<String, String> params = params(ex.getRequestURI().getRawQuery());
+            int k = DEFAULT_K;
+            if (params.containsKey("k")) {
+                k = Integer.parseInt(params.get("k"));
+                if (k < 1 || k > MAX_K) {
+                    send(ex, 400, error("k must be in 1.." + MAX_K));
+                    return;
+                }
+            }
+
+            long query;
+            long[] oriented = null;
+            boolean orient = "1".equals(params.get("orient"));
+            String method = ex.getRequestMethod();
+            if ("GET".equals(method)) {
+                if (orient) {
+                    send(ex, 400, error("orient=1 needs the image (POST), not its hash"));
+                    return;
+                }
+                String bits = params.get("hash");
+                if (bits == null || bits.length() != this.store.hashLength()) {
+                    send(ex, 400, error("hash must be " + this.store.hashLength() + " '0'/'1' characters"));
+                    return;
+                }
+                query = PHash.parseBits(bits);
+            } else if ("POST".equals(method)) {
+                byte[] body = readBody(ex.getRequestBody());
+                if (body == null) {
+                    send(ex, 413, error("image larger than " + MAX_IMAGE_BYTES + " bytes"));
+                    return;
+                }
+                PHash hash;
+                try {
+                    if (orient) {
+                        PHash[] hashes = this.hasher.getOrientedPHashes(new ByteArrayInputStream(body));
+                        oriented = new long[hashes.length];
+                        for (int o = 0; o < hashes.length; o++) {
+                            oriented[o] = hashes[o].bits();
+                        }
+                        hash = hashes[0];
+                    } else {
+                        hash = this.hasher.getPHash(new ByteArrayInputStream(body));
+                    }
+                } catch (IllegalStateException e) {
+                    send(ex, 400, error(e.getMessage()));
+                    return;
+                } catch (Exception e) {
+                    send(ex, 400, error("cannot decode image: " + e));
+                    return;
+                }
+                if (hash.length() != this.store.hashLength()) {
+                    send(ex, 500, error("index holds " + this.store.hashLength() + "-bit hashes"));
+                    return;
+                }
+                query = hash.bits();
+            } else {
+                ex.getResponseHeaders().set("Allow", "GET, POST");
+                send(ex, 405, error("use GET or POST"));
+                return;
+            }
+
+            TopKCollector top;
+            if (this.store instanceof ShardedIndex) {
+                String shard = params.get("shard");
+                List<String> only = shard != null ? Arrays.asList(shard.split(",")) : null;
+                top = oriented != null ? ((ShardedIndex) this.store).topKAny(oriented, k, only)
+                        : ((ShardedIndex) this.store).topK(query, k, only);
+            } else if (params.containsKey("shard")) {
+                send(ex, 400, error("index is not sharded, serve a hashtxt directory"));
+                return;
+            } else if (oriented != null) {
+                top = HashSearch.topKAny(this.store, oriented, k);
+            } else {
+                top = HashSearch.topK(this.store, query, k);
+            }
+            long micros = (System.nanoTime() - start) / 1000;
+            send(ex, 200, this.json(query, top, micros));
+        } catch (IllegalArgumentException e) {
+            send(ex, 400, error(e.getMessage()));
+        }
+    }
+
+    String json(long query, TopKCollector top, long micros) {
+        StringBuilder sb = new StringBuilder(64 + top.count() * 48);
+        sb.append("{\"query\":\"")
+                .append(PHash.toBitString(query, this.store.hashLength()))
+                .append("\",\"micros\":").append(micros).append(",\"results\":[");
+        for (int a = 0; a < top.count(); a++) {
+            if (a > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"name\":");
+            quote(sb, this.store.name(top.id(a)));
+            sb.append(",\"distance\":").append(top.distance(a)).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    static String error(String message) {
+        StringBuilder sb = new StringBuilder("{\"error\":");
+        quote(sb, message);
+        return sb.append('}').toString();
+    }
+
+    static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    static Map<String, String> params(String rawQuery) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    // null if the body is larger than MAX_IMAGE_BYTES
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+        byte[] buf = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            if (out.size() + n > MAX_IMAGE_BYTES) {
+                return null;
+            }
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void send(HttpExchange ex, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(status, body.length);
+        OutputStream os = ex.getResponseBody();
+        try {
+            os.write(body);
+        } finally {
+            os.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: HashServer <index .phx or hashtxt dir> [port]");
+            return;
+        }
+        File file = new File(args[0]);
+        long start = System.currentTimeMillis();
+        // always on JMX (phash:type=Metrics); -Dphash.metrics.dump=<s> also logs it
+        try {
+            Metrics.registerMBean();
+        } catch (JMException e) {
+            System.err.println("metrics not in JMX: " + e);
+        }
+        Metrics.fromSystemProperties();
+        HashServer server;
+        if (file.isDirectory() && !IncrementalIndex.isIndexDir(file)) {
+            server = new HashServer(ShardedIndex.byFile(file));
+        } else {
+            // pull everything into memory once so no query waits on a page fault
+            HashStore store = HashIndexFile.openStore(file);
+            server = new HashServer(OffHeapHashStore.requested() ? OffHeapHashStore.copyOf(store)
+                    : ArrayHashStore.copyOf(store));
+        }
+        // -Dphash.cache=<file>: re-uploaded images are answered without a decode
+        HashCache.fromSystemProperties(server.hasher);
+        server.start(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT);
+        System.out.println("serving " + server.store().size() + " hashes on http://localhost:"
+                + server.port() + "/query (loaded in "
+                + (System.currentTimeMillis() - start) + " ms)");
+    }
+}
@@ -0,0 +1,46 @@
+package phash;
+
+/*
+* function: a read-only list of (image name, packed hash) records.
+* Records are addressed by position 0..size()-1; hash(i) is the PHash bits
+* of record i (see PHash), hashLength() the number of bits in each of them.
+*
+* Hashes longer than 64 bits take words() longs per record, read with
+* word(i, w); hash(i) is only defined for single-word stores, which is
+* what the scans, MultiIndexHash and the rest of the search code need.
+*/
+public interface HashStore {
+
+    int size();
+
+    int hashLength();
+
+    long hash(int i);
+
+    String name(int i);
+
+    /**
+     * @return longs per hash, PHash.words(hashLength())
+     */
+    default int words() {
+        return 1;
+    }
+
+    /**
+     * @return word w of hash i, packed like PHash.word(w)
+     */
+    default long word(int i, int w) {
+        if (w != 0) {
+            throw new IndexOutOfBoundsException("word " + w + " of a single-word hash");
+        }
+        return this.hash(i);
+    }
+
+    /**
+     * @return the hash the records were made with, or null if the store
+     *         does not record it (hashtxt files)
+     */
+    default HashConfig config() {
+        return null;
+    }
+}
@@ -0,0 +1,195 @@
+package phash;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/*
+* function: reader for the hashtxt text format written by ImagePHash.main:
+*   <image name> <'0'/'1' hash bits>\r\n
+* one record per line, one .txt file per landmark.
+* Records go into an ArrayHashStore, or with loadOffHeap (or
+* -Dphash.store=offheap through HashIndexFile.openStore) into an
+* OffHeapHashStore.
+*
+* The lines do not say which hash they hold (a 49-bit line may be
+* phash/8, ahash/7 or dhash/7), so writers put the HashConfig next to
+* them: <file>.config for a single file, or hashtxt.config for every file
+* of a directory (BulkIndexer). Files without either load with no config.
+*/
+public class HashTxt {
+
+    public static final String CONFIG = "hashtxt.config";
+
+    private HashTxt() {
+    }
+
+    /**
+     * Loads a single .txt file, or every .txt file of a directory in name
+     * order.
+     *
+     * @param fileOrDir
+     * @return ArrayHashStore
+     * @throws IOException
+     */
+    public static ArrayHashStore load(File fileOrDir) throws IOException {
+        ArrayHashStore store = null;
+        for (File f : listFiles(fileOrDir)) {
+            store = read(f, store);
+        }
+        return store != null ? store : new ArrayHashStore(0);
+    }
+
+    /**
+     * Same as load, into a store outside the Java heap.
+     *
+     * @param fileOrDir
+     * @return OffHeapHashStore
+     * @throws IOException
+     */
+    public static OffHeapHashStore loadOffHeap(File fileOrDir) throws IOException {
+        GrowableHashStore store = null;
+        for (File f : listFiles(fileOrDir)) {
+            store = read(f, store, true);
+        }
+        return store != null ? (OffHeapHashStore) store : new OffHeapHashStore(0);
+    }
+
+    static File[] listFiles(File fileOrDir) throws IOException {
+        if (fileOrDir.isFile()) {
+            return new File[] { fileOrDir };
+        }
+        File[] fileList = fileOrDir.listFiles();
+        if (fileList == null) {
+            throw new IOException("not a file or directory: " + fileOrDir);
+        }
+        int n = 0;
+        for (int k = 0; k < fileList.length; k++) {
+            if (fileList[k].isFile() && fileList[k].getName().endsWith(".txt")) {
+                fileList[n++] = fileList[k];
+            }
+        }
+        fileList = Arrays.copyOf(fileList, n);
+        Arrays.sort(fileList);
+        return fileList;
+    }
+
+    /**
+     * Appends the records of one .txt file to store (created on first use,
+     * sized by the first hash read).
+     */
+    static ArrayHashStore read(File txt, ArrayHashStore store) throws IOException {
+        return (ArrayHashStore) read(txt, store, false);
+    }
+
+    /**
+     * The hash the records of a .txt file were made with: from
+     * <file>.config, else from hashtxt.config in its directory.
+     *
+     * @param txt
+     * @return HashConfig, null if neither file exists
+     * @throws IOException
+     */
+    public static HashConfig readConfig(File txt) throws IOException {
+        File config = new File(txt.getPath() + ".config");
+        if (!config.isFile()) {
+            config = new File(txt.getAbsoluteFile().getParentFile(), CONFIG);
+            if (!config.isFile()) {
+                return null;
+            }
+        }
+        return parseConfig(config);
+    }
+
+    // a config file written by writeConfig
+    static HashConfig parseConfig(File config) throws IOException {
+        String s = new String(Files.readAllBytes(config.toPath()), StandardCharsets.UTF_8).trim();
+        try {
+            return HashConfig.parse(s);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(config + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records config next to the records: for a directory as its
+     * hashtxt.config, for a .txt file as <file>.config.
+     *
+     * @param fileOrDir
+     * @param config
+     * @throws IOException
+     */
+    public static void writeConfig(File fileOrDir, HashConfig config) throws IOException {
+        File file = fileOrDir.isDirectory() ? new File(fileOrDir, CONFIG)
+                : new File(fileOrDir.getPath() + ".config");
+        Files.write(file.toPath(), (config + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean same(HashConfig a, HashConfig b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String describe(HashConfig config) {
+        return config != null ? config.toString() : "an unknown hash";
+    }
+
+    static GrowableHashStore read(File txt, GrowableHashStore store, boolean offHeap)
+            throws IOException {
+        boolean first = store == null;
+        HashConfig config = readConfig(txt);
+        if (!first && !same(config, store.config())) {
+            throw new IOException(txt + ": made with " + describe(config)
+                    + ", the files before it with " + describe(store.config()));
+        }
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(txt), StandardCharsets.UTF_8));
+        try {
+            String line;
+            int lineNo = 0;
+            while ((line = br.readLine()) != null) {
+                lineNo++;
+                int end = line.length();
+                while (end > 0 && line.charAt(end - 1) <= ' ') {
+                    end--;
+                }
+                if (end == 0) {
+                    continue;
+                }
+                int sep = line.lastIndexOf(' ', end - 1);
+                if (sep <= 0) {
+                    throw new IOException(txt + ":" + lineNo + ": no hash in line");
+                }
+                CharSequence bits = line.subSequence(sep + 1, end);
+                if (store == null) {
+                    store = offHeap ? new OffHeapHashStore(bits.length())
+                            : new ArrayHashStore(bits.length());
+                    try {
+                        store.setConfig(config);
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException(txt + ": " + e.getMessage());
+                    }
+                } else if (bits.length() != store.hashLength()) {
+                    throw new IOException(txt + ":" + lineNo + ": expected "
+                            + store.hashLength() + " hash bits, got " + bits.length());
+                }
+                try {
+                    if (bits.length() > PHash.MAX_LENGTH) {
+                        store.add(line.substring(0, sep), PHash.fromBitString(bits));
+                    } else {
+                        store.add(line.substring(0, sep), PHash.parseBits(bits));
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(txt + ":" + lineNo + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return store;
+    }
+}
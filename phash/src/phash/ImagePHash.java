@@ -1,18 +1,29 @@
 package phash;
 
+import java.awt.AlphaComposite;
 import java.awt.Graphics2D;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 
 /*
 * function: úͼƬƶȼJavaʵ
@@ -22,54 +33,370 @@ import javax.imageio.ImageIO;
 */
 public class ImagePHash {
 
-    private int size = 32;
-    private int smallerSize = 8;
+    private static final Logger LOG = Logger.getLogger(ImagePHash.class.getName());
+
+    private final int size;
+    private final int smallerSize;
+    private final DctEngine dct; // null for hashes without a DCT
+    private final HashConfig config;
+    private volatile int downscaleSamples;
+    private volatile int decodeOversample;
+    private volatile HashCache cache;
+
+    /*
+     * One instance can be shared by any number of threads: all per-image
+     * state lives in a Scratch taken from this pool for one hash and put
+     * back after, so in steady state hashing allocates little more than the
+     * decoded image. A pool rather than a ThreadLocal because HashServer
+     * hashes on virtual threads, one per request, which would never reuse
+     * a per-thread Scratch. Past the bound extra Scratches are dropped.
+     */
+    private final BlockingQueue<Scratch> scratches = new ArrayBlockingQueue<Scratch>(
+            2 * Runtime.getRuntime().availableProcessors());
+
+    private Scratch takeScratch() {
+        Scratch s = this.scratches.poll();
+        return s != null ? s : new Scratch(this.size);
+    }
+
+    private void returnScratch(Scratch s) {
+        this.scratches.offer(s);
+    }
+
+    private static final class Scratch {
+        final BufferedImage resized;
+        final ColorConvertOp colorConvert = new ColorConvertOp(
+                ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
+        final double[][] vals;
+        final double[][] dctVals;
+        final double[][] work;
+        final LumaDownscaler downscaler;
+
+        Scratch(int size) {
+            this.downscaler = new LumaDownscaler(size);
+            this.resized = new BufferedImage(size, size,
+                    BufferedImage.TYPE_INT_ARGB);
+            this.vals = new double[size][size];
+            this.dctVals = new double[size][size];
+            this.work = new double[size][size];
+        }
+    }
 
     public ImagePHash() {
-        this.initCoefficients();
+        this(HashConfig.DEFAULT);
     }
 
-    private ImagePHash(int size, int smallerSize) {
+    /**
+     * Hasher for any member of the hash family, e.g. a cheap dHash with
+     * new ImagePHash(HashConfig.parse("dhash/8")) or a 256-bit pHash with
+     * new ImagePHash(HashConfig.forBits(HashAlgorithm.PHASH, 256)).
+     *
+     * @param config
+     */
+    public ImagePHash(HashConfig config) {
+        this(config.algorithm() == HashAlgorithm.PHASH
+                ? new SeparableDct(config.sampleSize(), config.side()) : null,
+                config.sampleSize(), config);
+    }
+
+    /**
+     * Hash with a specific DCT engine, e.g. new ReferenceDct(32) to get the
+     * hashes the original O(N^4) code produced.
+     *
+     * @param dct
+     */
+    public ImagePHash(DctEngine dct) {
+        this(dct, dct.size(), HashConfig.DEFAULT);
+    }
+
+    private ImagePHash(DctEngine dct, int size, HashConfig config) {
         this.size = size;
-        this.smallerSize = smallerSize;
+        this.smallerSize = config.side();
+        this.dct = dct;
+        this.config = config;
+    }
 
-        this.initCoefficients();
+    public HashConfig config() {
+        return this.config;
     }
 
-    private int distance(String s1, String s2) {
-        int counter = 0;
-        for (int k = 0; k < s1.length(); k++) {
-            if (s1.charAt(k) != s2.charAt(k)) {
-                counter++;
-            }
+    /**
+     * Switches steps 1 and 2 from the AWT resize/ColorConvertOp/getRGB
+     * pipeline to a single pass over the decoded raster (LumaDownscaler).
+     * 0 (the default) keeps the AWT pipeline; 1 picks the same pixels as
+     * drawImage and gives (almost always) the same hashes, about 3x faster;
+     * n > 1 box-filters an n x n grid per cell, which is smoother but no
+     * longer matches hashes made with 0 or 1. An index must be built and
+     * queried with compatible settings. Set it before sharing the instance.
+     *
+     * @param samples
+     */
+    public void setDownscaleSamples(int samples) {
+        if (samples < 0) {
+            throw new IllegalArgumentException("samples must be >= 0: " + samples);
+        }
+        this.downscaleSamples = samples;
+    }
+
+    public int getDownscaleSamples() {
+        return this.downscaleSamples;
+    }
+
+    /**
+     * Lets the decoder skip pixels (ImageReadParam source subsampling) so a
+     * multi-megapixel photo is never fully decoded for a 32x32 hash. The
+     * decoded image keeps at least oversample * 32 pixels per axis: 0 (the
+     * default) decodes every pixel, 1 is the most aggressive, 4 to 8 keeps
+     * enough detail for downscale samples > 1. Hashes made with and without
+     * subsampling can differ by a few bits, so build and query an index with
+     * the same setting. Set it before sharing the instance.
+     *
+     * @param oversample
+     */
+    public void setDecodeOversample(int oversample) {
+        if (oversample < 0) {
+            throw new IllegalArgumentException("oversample must be >= 0: " + oversample);
         }
-        return counter;
+        this.decodeOversample = oversample;
+    }
+
+    public int getDecodeOversample() {
+        return this.decodeOversample;
+    }
+
+    /**
+     * Looks every image read through getPHash(InputStream) up by its
+     * content digest first and only decodes bytes it has not seen. The
+     * cache must have been made for this instance's settings(); attach it
+     * after the other settings are final.
+     *
+     * @param cache
+     *            null to switch caching off
+     */
+    public void setCache(HashCache cache) {
+        if (cache != null && !cache.settings().equals(this.settings())) {
+            throw new IllegalArgumentException("cache holds hashes for ["
+                    + cache.settings() + "], this hasher is [" + this.settings() + "]");
+        }
+        this.cache = cache;
+    }
+
+    public HashCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * @return everything that decides the hash of a given file; hashes made
+     *         with different settings must not be mixed
+     */
+    public String settings() {
+        return "hash=" + this.config + " size=" + this.size + " dct="
+                + (this.dct != null ? this.dct.getClass().getSimpleName() : "none") + " samples="
+                + this.downscaleSamples + " oversample=" + this.decodeOversample;
+    }
+
+    private int distance(String s1, String s2) {
+        return PHash.distance(PHash.parseBits(s1), PHash.parseBits(s2));
     }
 
     // Returns a 'binary string' (like. 001010111011100010) which is easy to do a hamming distance on.
-    private String getHash(InputStream is) throws Exception {
-        BufferedImage img = ImageIO.read(is);
+    public String getHash(InputStream is) throws Exception {
+        return this.getPHash(is).toBitString();
+    }
 
-        /*
-         * 1. Reduce size(Сߴ). Like Average Hash, pHash starts with a small
-         * image. However, the image is larger than 8x8; 32x32 is a good
-         * size.This is really done to simplify the DCT computation and not
-         * because it is needed to reduce the high frequencies.
-         */
-        img = this.resize(img, this.size, this.size);
+    /**
+     * Same hash packed into a long; compare with PHash.distance. The stream
+     * is read as far as the decoder needs but not closed, the caller owns
+     * it (see getPHash(File) for the common case).
+     *
+     * @param is
+     * @return PHash
+     * @throws Exception
+     */
+    public PHash getPHash(InputStream is) throws Exception {
+        HashCache cache = this.cache;
+        if (cache == null) {
+            return this.decodeAndHash(is);
+        }
+        byte[] data = HashCache.readFully(is);
+        byte[] digest = ContentDigest.of(data);
+        PHash hash = cache.get(digest);
+        if (hash == null) {
+            hash = this.decodeAndHash(new ByteArrayInputStream(data));
+            cache.put(digest, hash);
+        }
+        return hash;
+    }
 
-        /*
-         * 2. Reduce color(ɫ). The image is reduced to a grayscale just to
-         * further simplify the number of computations.
-         */
-        img = this.grayscale(img);
+    /**
+     * Hashes an image file and closes it again.
+     *
+     * @param file
+     * @return PHash
+     * @throws Exception
+     */
+    public PHash getPHash(File file) throws Exception {
+        InputStream is = new FileInputStream(file);
+        try {
+            return this.getPHash(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Hashes an encoded image held in memory.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return PHash
+     * @throws Exception
+     */
+    public PHash getPHash(byte[] data, int offset, int length) throws Exception {
+        return this.getPHash(new ByteArrayInputStream(data, offset, length));
+    }
+
+    public PHash getPHash(byte[] data) throws Exception {
+        return this.getPHash(data, 0, data.length);
+    }
+
+    /**
+     * Hashes the remaining bytes of buf (an encoded image), e.g. a slice of
+     * a mapped file. The buffer's position is left unchanged.
+     *
+     * @param buf
+     * @return PHash
+     * @throws Exception
+     */
+    public PHash getPHash(ByteBuffer buf) throws Exception {
+        if (buf.hasArray()) {
+            return this.getPHash(buf.array(), buf.arrayOffset() + buf.position(),
+                    buf.remaining());
+        }
+        return this.getPHash(new ByteBufferInputStream(buf.duplicate()));
+    }
+
+    // reads a ByteBuffer without copying it first
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return this.buf.hasRemaining() ? this.buf.get() & 0xff : -1;
+        }
 
-        double[][] vals = new double[this.size][this.size];
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, this.buf.remaining());
+            this.buf.get(b, off, n);
+            return n;
+        }
 
-        for (int x = 0; x < img.getWidth(); x++) {
-            for (int y = 0; y < img.getHeight(); y++) {
-                vals[x][y] = getBlue(img, x, y);
+        @Override
+        public int available() {
+            return this.buf.remaining();
+        }
+    }
+
+    private PHash decodeAndHash(InputStream is) throws Exception {
+        return this.getPHash(this.decodeImage(is));
+    }
+
+    private BufferedImage decodeImage(InputStream is) throws IOException {
+        int oversample = this.decodeOversample;
+        long start = Metrics.start();
+        BufferedImage img;
+        try {
+            img = oversample == 0 ? ImageIO.read(is) : decode(is, this.size * oversample);
+        } catch (IOException e) {
+            Metrics.decodeFailed();
+            throw e;
+        } catch (RuntimeException e) {
+            Metrics.decodeFailed();
+            throw e;
+        }
+        if (img == null) {
+            // ImageIO.read found no reader; drawImage(null) would silently keep the last image
+            Metrics.decodeFailed();
+            throw new IOException("unsupported or corrupt image");
+        }
+        Metrics.stop(Metrics.DECODE, start);
+        return img;
+    }
+
+    /*
+     * Decodes every n-th pixel per axis, n chosen so that at least minSide
+     * pixels remain per axis. Uses an in-memory stream cache instead of the
+     * temp file ImageIO.read may create.
+     */
+    static BufferedImage decode(InputStream is, int minSide) throws IOException {
+        ImageInputStream iis = new MemoryCacheImageInputStream(is);
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int sx = Math.max(1, reader.getWidth(0) / minSide);
+                int sy = Math.max(1, reader.getHeight(0) / minSide);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (sx > 1 || sy > 1) {
+                    param.setSourceSubsampling(sx, sy, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
             }
+        } finally {
+            iis.close();
+        }
+    }
+
+    // Hash of an already decoded image.
+    public PHash getPHash(BufferedImage img) {
+        PHash hash = this.hashStages(img);
+        Metrics.hashed();
+        return hash;
+    }
+
+    // the steps below, each timed into its Metrics histogram
+    private PHash hashStages(BufferedImage img) {
+        Scratch s = this.takeScratch();
+        try {
+            return this.hashStages(img, s);
+        } finally {
+            this.returnScratch(s);
+        }
+    }
+
+    private PHash hashStages(BufferedImage img, Scratch s) {
+        double[][] vals = s.vals;
+        long t = this.sample(img, s);
+
+        // the DCT-free members of the family stop here
+        PHash hash;
+        if (this.config.algorithm() == HashAlgorithm.AHASH) {
+            hash = this.averageBits(vals);
+            Metrics.stop(Metrics.BITS, t);
+            return hash;
+        }
+        if (this.config.algorithm() == HashAlgorithm.DHASH) {
+            hash = this.differenceBits(vals);
+            Metrics.stop(Metrics.BITS, t);
+            return hash;
         }
 
         /*
@@ -77,10 +404,99 @@ public class ImagePHash {
          * separates the image into a collection of frequencies and scalars.
          * While JPEG uses an 8x8 DCT, this algorithm uses a 32x32 DCT.
          */
-        long start = System.currentTimeMillis();
-        double[][] dctVals = this.applyDCT(vals);
-        //        System.out.println("DCT_COST_TIME: " + (System.currentTimeMillis() - start));
+        double[][] dctVals = s.dctVals;
+        this.dct.applyDCT(vals, dctVals, s.work);
+        t = Metrics.stop(Metrics.DCT, t);
+
+        hash = this.hashBits(dctVals);
+        Metrics.stop(Metrics.BITS, t);
+        return hash;
+    }
+
+    // steps 1 and 2 into s.vals; returns the time they ended, as Metrics.stop
+    private long sample(BufferedImage img, Scratch s) {
+        double[][] vals = s.vals;
+        long t = Metrics.start();
+        int samples = this.downscaleSamples;
+        if (samples > 0) {
+            // steps 1 and 2 in one pass over the decoded raster, see LumaDownscaler
+            s.downscaler.downscale(img, vals, samples);
+            t = Metrics.stop(Metrics.RESIZE, t);
+        } else {
+            /*
+             * 1. Reduce size(Сߴ). Like Average Hash, pHash starts with a small
+             * image. However, the image is larger than 8x8; 32x32 is a good
+             * size.This is really done to simplify the DCT computation and not
+             * because it is needed to reduce the high frequencies.
+             */
+            img = this.resize(img, s.resized);
+            t = Metrics.stop(Metrics.RESIZE, t);
+
+            /*
+             * 2. Reduce color(ɫ). The image is reduced to a grayscale just to
+             * further simplify the number of computations.
+             */
+            img = this.grayscale(img, s.colorConvert);
+
+            for (int x = 0; x < img.getWidth(); x++) {
+                for (int y = 0; y < img.getHeight(); y++) {
+                    vals[x][y] = getBlue(img, x, y);
+                }
+            }
+            t = Metrics.stop(Metrics.GRAYSCALE, t);
+        }
+        return t;
+    }
+
+    /**
+     * pHashes of an image in all eight orientations, see
+     * getOrientedPHashes(BufferedImage). The stream is not closed.
+     *
+     * @param is
+     * @return PHash[], indexed by Orientation.ordinal()
+     * @throws Exception
+     */
+    public PHash[] getOrientedPHashes(InputStream is) throws Exception {
+        return this.getOrientedPHashes(this.decodeImage(is));
+    }
+
+    /**
+     * pHashes of img mirrored and rotated in all eight ways, [0] being
+     * getPHash(img). Steps 1 to 3 run once; the other seven hashes are
+     * derived from the same DCT block (see Orientation), as if each variant
+     * had been decoded and hashed. Query them with HashSearch.topKAny.
+     *
+     * @param img
+     * @return PHash[], indexed by Orientation.ordinal()
+     */
+    public PHash[] getOrientedPHashes(BufferedImage img) {
+        if (this.dct == null) {
+            throw new IllegalStateException("orientations are derived from the DCT, "
+                    + this.config + " has none");
+        }
+        Scratch s = this.takeScratch();
+        PHash[] hashes;
+        try {
+            long t = this.sample(img, s);
+            this.dct.applyDCT(s.vals, s.dctVals, s.work);
+            t = Metrics.stop(Metrics.DCT, t);
+
+            Orientation[] all = Orientation.values();
+            hashes = new PHash[all.length];
+            for (int o = 0; o < all.length; o++) {
+                all[o].transform(s.dctVals, s.work, this.smallerSize);
+                hashes[o] = this.hashBits(s.work);
+            }
+            Metrics.stop(Metrics.BITS, t);
+        } finally {
+            this.returnScratch(s);
+        }
+        Metrics.hashed();
+        return hashes;
+    }
 
+    // Steps 4 to 6: hash bits of a DCT block (only the top-left smallerSize x smallerSize is read).
+    PHash hashBits(double[][] dctVals) {
         /*
          * 4. Reduce the DCT. This is the magic step. While the DCT is 32x32,
          * just keep the top-left 8x8. Those represent the lowest frequencies in
@@ -112,75 +528,87 @@ public class ImagePHash {
          * long as the overall structure of the image remains the same; this can
          * survive gamma and color histogram adjustments without a problem.
          */
-        String hash = "";
+        long[] hash = new long[PHash.words(this.config.bits())];
+        int bits = 0;
 
         for (int x = 0; x < this.smallerSize; x++) {
             for (int y = 0; y < this.smallerSize; y++) {
                 if (x != 0 && y != 0) {
-                    hash += (dctVals[x][y] > avg ? "1" : "0");
+                    hash[bits >>> 6] = (hash[bits >>> 6] << 1) | (dctVals[x][y] > avg ? 1L : 0L);
+                    bits++;
                 }
             }
         }
 
-        return hash;
+        return pack(hash, bits);
+    }
+
+    // aHash: one bit per thumbnail pixel, set if brighter than the mean
+    PHash averageBits(double[][] vals) {
+        int n = this.smallerSize;
+        double total = 0;
+        for (int x = 0; x < n; x++) {
+            for (int y = 0; y < n; y++) {
+                total += vals[x][y];
+            }
+        }
+        double avg = total / (n * n);
+
+        long[] hash = new long[PHash.words(n * n)];
+        int bits = 0;
+        for (int x = 0; x < n; x++) {
+            for (int y = 0; y < n; y++) {
+                hash[bits >>> 6] = (hash[bits >>> 6] << 1) | (vals[x][y] > avg ? 1L : 0L);
+                bits++;
+            }
+        }
+        return pack(hash, bits);
+    }
+
+    /*
+     * dHash: one bit per pair of horizontal neighbours, set if the right one
+     * is brighter. The (n + 1) x (n + 1) thumbnail gives n + 1 columns; its
+     * n + 1 rows are averaged pairwise into n, so all of it is used.
+     */
+    PHash differenceBits(double[][] vals) {
+        int n = this.smallerSize;
+        long[] hash = new long[PHash.words(n * n)];
+        int bits = 0;
+        for (int y = 0; y < n; y++) {
+            for (int x = 0; x < n; x++) {
+                double left = vals[x][y] + vals[x][y + 1];
+                double right = vals[x + 1][y] + vals[x + 1][y + 1];
+                hash[bits >>> 6] = (hash[bits >>> 6] << 1) | (right > left ? 1L : 0L);
+                bits++;
+            }
+        }
+        return pack(hash, bits);
     }
 
-    private BufferedImage resize(BufferedImage image, int width, int height) {
-        BufferedImage resizedImage = new BufferedImage(width, height,
-                BufferedImage.TYPE_INT_ARGB);
+    private static PHash pack(long[] words, int bits) {
+        return words.length == 1 ? new PHash(words[0], bits) : new PHash(words, bits);
+    }
+
+    // draws image scaled into the reused resizedImage; Src replaces whatever the previous image left there
+    BufferedImage resize(BufferedImage image, BufferedImage resizedImage) {
         Graphics2D g = resizedImage.createGraphics();
-        g.drawImage(image, 0, 0, width, height, null);
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, resizedImage.getWidth(),
+                resizedImage.getHeight(), null);
         g.dispose();
         return resizedImage;
     }
 
-    private ColorConvertOp colorConvert = new ColorConvertOp(
-            ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
-
-    private BufferedImage grayscale(BufferedImage img) {
-        this.colorConvert.filter(img, img);
+    BufferedImage grayscale(BufferedImage img,
+            ColorConvertOp colorConvert) {
+        colorConvert.filter(img, img);
         return img;
     }
 
-    private static int getBlue(BufferedImage img, int x, int y) {
+    static int getBlue(BufferedImage img, int x, int y) {
         return (img.getRGB(x, y)) & 0xff;
     }
 
-    // DCT function stolen from http://stackoverflow.com/questions/4240490/problems-with-dct-and-idct-algorithm-in-java
-
-    private double[] c;
-
-    private void initCoefficients() {
-        this.c = new double[this.size];
-
-        for (int i = 1; i < this.size; i++) {
-            this.c[i] = 1;
-        }
-        this.c[0] = 1 / Math.sqrt(2.0);
-    }
-
-    private double[][] applyDCT(double[][] f) {
-        int N = this.size;
-
-        double[][] F = new double[N][N];
-        for (int u = 0; u < N; u++) {
-            for (int v = 0; v < N; v++) {
-                double sum = 0.0;
-                for (int i = 0; i < N; i++) {
-                    for (int j = 0; j < N; j++) {
-                        sum += Math.cos(((2 * i + 1) / (2.0 * N)) * u * Math.PI)
-                                * Math.cos(
-                                        ((2 * j + 1) / (2.0 * N)) * v * Math.PI)
-                                * (f[i][j]);
-                    }
-                }
-                sum *= ((this.c[u] * this.c[v]) / 4.0);
-                F[u][v] = sum;
-            }
-        }
-        return F;
-    }
-
     /**
      *
      * @param img1
@@ -189,14 +617,14 @@ public class ImagePHash {
      * @return boolean
      */
     public boolean imgChk(String img1, String img2, int tv) {
-        ImagePHash p = new ImagePHash();
-        String image1;
-        String image2;
+        ImagePHash p = this;
+        PHash image1;
+        PHash image2;
 
         try {
-            image1 = p.getHash(new FileInputStream(new File(img1)));
-            image2 = p.getHash(new FileInputStream(new File(img2)));
-            int dt = p.distance(image1, image2);
+            image1 = p.getPHash(new File(img1));
+            image2 = p.getPHash(new File(img2));
+            int dt = image1.distance(image2);
             System.out
                     .println("[" + img1 + "] : [" + img2 + "] Score is " + dt);
             if (dt <= tv) {
@@ -244,8 +672,14 @@ public class ImagePHash {
         String hashcode_base = "";
 
         try {
-            hashcode_base = hashc
-                    .getHash(new FileInputStream(new File(path_base)));
+            // -Dphash.cache=<file>: files hashed before are not decoded again
+            HashCache.fromSystemProperties(hashc);
+        } catch (IOException e1) {
+            e1.printStackTrace();
+        }
+
+        try {
+            hashcode_base = hashc.getPHash(new File(path_base)).toBitString();
         } catch (FileNotFoundException e1) {
             // TODO Auto-generated catch block
             e1.printStackTrace();
@@ -275,28 +709,28 @@ public class ImagePHash {
                     String hashcode = "";
 
                     try {
-                        hashcode = hashc
-                                .getHash(new FileInputStream(new File(path)));
+                        hashcode = hashc.getPHash(new File(path)).toBitString();
                         bw.write(fileName + " ");
                         bw.write(hashcode);
                         bw.flush();
 
                     } catch (Exception e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
+                        // no hash to compare or write; BulkIndexer quarantines these instead
+                        System.err.println(path + ": " + e);
+                        continue;
                     }
 
                     int dt = hashc.distance(hashcode_base, hashcode);
 
-                    System.out.println("ļ" + fileName);
-                    System.out
-                            .println("hashcodeǣ" + hashcode + "   " + dt);
+                    // per-file detail only with the phash logger at FINE
+                    LOG.fine("ļ" + fileName + " hashcodeǣ" + hashcode + "   " + dt);
 
                 }
 
                 bw.write("\r\n");
                 bw.flush();
             }
+            bw.close();
 
         } catch (IOException e1) {
             // TODO Auto-generated catch block
@@ -0,0 +1,668 @@
+package phash;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+* function: hash index that is updated in place instead of rebuilt.
+* An index directory holds
+*   base.log   all live records as of the last compaction
+*   index.log  add/remove records appended since then
+*   index.phx  the same live records as a HashIndexFile, for the query tools
+* Every add/remove is one record appended to index.log, so a change costs
+* one small write. Compaction (on demand, or periodically in the background)
+* rewrites base.log and index.phx from memory and empties index.log.
+*
+* Each record remembers the file's mtime, size and content digest.
+* update() walks an image tree and only opens files whose mtime or size
+* changed, and only re-hashes those whose digest changed too, so a
+* re-index costs time proportional to what changed.
+*
+* log layout (big-endian): int magic 'PHLG', int version, int hash length,
+* int HashAlgorithm code and int HashConfig side (0, 0 while empty), then
+* records:
+*   byte 1 (add), UTF name, long hash, long mtime, long size, byte n, byte[n] digest
+*   byte 2 (remove), UTF name
+* A record cut short by a crash is dropped (and truncated) on the next open.
+* Replaying index.log over base.log is idempotent, so a crash between the
+* compaction steps loses nothing.
+* All records of an index are made with one HashConfig: update() hashes
+* with the one in the headers (-Dphash.hash for a new index) and put()
+* refuses others. Version 1 logs (12-byte header) were only ever written
+* with the default hash and are read as phash/8.
+*
+* usage: IncrementalIndex <index dir> update <image root> [threads]
+*        IncrementalIndex <index dir> remove <name>...
+*        IncrementalIndex <index dir> compact
+*/
+public class IncrementalIndex {
+
+    static final int MAGIC = 0x50484c47; // "PHLG"
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 20;
+    static final int V1_HEADER_SIZE = 12;
+    static final String BASE = "base.log";
+    static final String LOG = "index.log";
+    static final String INDEX = "index.phx";
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+
+    public static final class Entry {
+        final String name;
+        final long hash;
+        final long modified;
+        final long length;
+        final byte[] digest;
+
+        Entry(String name, long hash, long modified, long length, byte[] digest) {
+            this.name = name;
+            this.hash = hash;
+            this.modified = modified;
+            this.length = length;
+            this.digest = digest;
+        }
+
+        public String name() {
+            return this.name;
+        }
+
+        public long hash() {
+            return this.hash;
+        }
+
+        public long modified() {
+            return this.modified;
+        }
+
+        public long length() {
+            return this.length;
+        }
+
+        public byte[] digest() {
+            return this.digest.clone();
+        }
+    }
+
+    /** what one update() did */
+    public static final class UpdateStats {
+        public int unchanged;
+        public int touched; // mtime or size changed, same bytes
+        public int hashed;
+        public int removed;
+        public int failed;
+
+        @Override
+        public String toString() {
+            return "unchanged " + this.unchanged + ", touched " + this.touched
+                    + ", hashed " + this.hashed + ", removed " + this.removed
+                    + ", failed " + this.failed;
+        }
+    }
+
+    private final File dir;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private int hashLength; // 0 until the first record
+    private HashConfig config; // null until the first record
+    private DataOutputStream log;
+    private int pending; // records in index.log
+    private ScheduledExecutorService compactor;
+
+    private IncrementalIndex(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Opens (or creates) an index directory for updating.
+     *
+     * @param dir
+     * @return IncrementalIndex
+     * @throws IOException
+     */
+    public static IncrementalIndex open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        IncrementalIndex index = new IncrementalIndex(dir);
+        index.replay(new File(dir, BASE), true);
+        index.pending = index.replay(new File(dir, LOG), true);
+        return index;
+    }
+
+    /**
+     * Reads the live records of an index directory without opening it for
+     * writing, e.g. for queries while another process updates it.
+     *
+     * @param dir
+     * @return ArrayHashStore
+     * @throws IOException
+     */
+    public static ArrayHashStore load(File dir) throws IOException {
+        IncrementalIndex index = new IncrementalIndex(dir);
+        index.replay(new File(dir, BASE), false);
+        index.replay(new File(dir, LOG), false);
+        return index.snapshot();
+    }
+
+    static boolean isIndexDir(File dir) {
+        return new File(dir, BASE).isFile() || new File(dir, LOG).isFile();
+    }
+
+    // applies every complete record of a log file, returns the record count
+    private int replay(File file, boolean truncate) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+        byte[] data = Files.readAllBytes(file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < 8) {
+            // nothing but a torn header
+            this.truncate(file, 0, truncate);
+            return 0;
+        }
+        if (in.readInt() != MAGIC) {
+            throw new IOException(file + ": not an index log (bad magic)");
+        }
+        int version = in.readInt();
+        if (version != 1 && version != VERSION) {
+            throw new IOException(file + ": unsupported log version");
+        }
+        int headerSize = version == 1 ? V1_HEADER_SIZE : HEADER_SIZE;
+        if (data.length < headerSize) {
+            this.truncate(file, 0, truncate);
+            return 0;
+        }
+        int bits = in.readInt();
+        this.checkLength(bits, file);
+        if (version == 1) {
+            this.checkConfig(bits == 0 ? null : HashConfig.DEFAULT, file);
+        } else {
+            this.checkConfig(readConfig(in.readInt(), in.readInt(), bits, file), file);
+        }
+        int records = 0;
+        long good = headerSize;
+        try {
+            while (good < data.length) {
+                byte op = in.readByte();
+                String name = in.readUTF();
+                if (op == ADD) {
+                    long hash = in.readLong();
+                    long modified = in.readLong();
+                    long length = in.readLong();
+                    byte[] digest = new byte[in.readUnsignedByte()];
+                    in.readFully(digest);
+                    this.entries.put(name, new Entry(name, hash, modified, length, digest));
+                } else if (op == REMOVE) {
+                    this.entries.remove(name);
+                } else {
+                    throw new IOException(file + ": bad record at byte " + good);
+                }
+                records++;
+                good = data.length - in.available();
+            }
+        } catch (EOFException e) {
+            this.truncate(file, good, truncate);
+        }
+        return records;
+    }
+
+    private void truncate(File file, long length, boolean truncate) throws IOException {
+        if (!truncate) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void checkLength(int length, Object source) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (this.hashLength == 0) {
+            this.hashLength = length;
+        } else if (length != this.hashLength) {
+            throw new IOException(source + ": " + length + "-bit hashes in a "
+                    + this.hashLength + "-bit index");
+        }
+    }
+
+    private static HashConfig readConfig(int code, int side, int length, File file)
+            throws IOException {
+        if (code == 0) {
+            return null;
+        }
+        HashAlgorithm algorithm = HashAlgorithm.forCode(code);
+        if (algorithm == null) {
+            throw new IOException(file + ": unknown hash algorithm " + code);
+        }
+        try {
+            HashConfig config = new HashConfig(algorithm, side);
+            if (config.bits() == length) {
+                return config;
+            }
+        } catch (IllegalArgumentException e) {
+            // reported below
+        }
+        throw new IOException(file + ": corrupt log header");
+    }
+
+    private void checkConfig(HashConfig config, Object source) throws IOException {
+        if (config == null) {
+            return;
+        }
+        if (this.config == null) {
+            this.config = config;
+        } else if (!config.equals(this.config)) {
+            throw new IOException(source + ": " + config + " hashes in a "
+                    + this.config + " index");
+        }
+    }
+
+    /**
+     * @return the hash every record is made with, null for an empty index
+     */
+    public synchronized HashConfig config() {
+        return this.config;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return records appended since the last compaction
+     */
+    public synchronized int pending() {
+        return this.pending;
+    }
+
+    public synchronized Entry get(String name) {
+        return this.entries.get(name);
+    }
+
+    /**
+     * Adds a record, or replaces the one with the same name.
+     *
+     * @param name
+     * @param hash
+     * @param config
+     *            the hash was made with, that of every other record
+     * @param modified
+     *            file mtime
+     * @param length
+     *            file size
+     * @param digest
+     *            ContentDigest of the file bytes
+     * @throws IOException
+     *             also if config is not the index's
+     */
+    public synchronized void put(String name, PHash hash, HashConfig config, long modified,
+            long length, byte[] digest) throws IOException {
+        if (hash.length() > PHash.MAX_LENGTH) {
+            throw new IllegalArgumentException("the index log holds hashes of up to "
+                    + PHash.MAX_LENGTH + " bits: " + name);
+        }
+        if (hash.length() != config.bits()) {
+            throw new IllegalArgumentException(config + " makes " + config.bits()
+                    + "-bit hashes, " + name + " has " + hash.length());
+        }
+        this.checkConfig(config, name);
+        this.checkLength(hash.length(), name);
+        if (digest.length > 255) {
+            throw new IllegalArgumentException("digest longer than 255 bytes");
+        }
+        DataOutputStream out = this.log();
+        out.writeByte(ADD);
+        out.writeUTF(name);
+        out.writeLong(hash.bits());
+        out.writeLong(modified);
+        out.writeLong(length);
+        out.writeByte(digest.length);
+        out.write(digest);
+        out.flush();
+        this.pending++;
+        this.entries.put(name, new Entry(name, hash.bits(), modified, length,
+                digest.clone()));
+    }
+
+    /**
+     * @return false if there was no such record
+     */
+    public synchronized boolean remove(String name) throws IOException {
+        if (!this.entries.containsKey(name)) {
+            return false;
+        }
+        DataOutputStream out = this.log();
+        out.writeByte(REMOVE);
+        out.writeUTF(name);
+        out.flush();
+        this.pending++;
+        this.entries.remove(name);
+        return true;
+    }
+
+    private DataOutputStream log() throws IOException {
+        if (this.log == null) {
+            File file = new File(this.dir, LOG);
+            boolean empty = file.length() == 0;
+            this.log = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file, true), 1 << 16));
+            if (empty) {
+                writeHeader(this.log, this.hashLength, this.config);
+            }
+        }
+        return this.log;
+    }
+
+    private static void writeHeader(DataOutputStream out, int hashLength,
+            HashConfig config) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(hashLength);
+        out.writeInt(config != null ? config.algorithm().code : 0);
+        out.writeInt(config != null ? config.side() : 0);
+    }
+
+    /**
+     * @return copy of the live records, in insertion order
+     */
+    public synchronized ArrayHashStore snapshot() {
+        ArrayHashStore store = new ArrayHashStore(this.hashLength,
+                this.entries.size());
+        store.setConfig(this.config);
+        for (Entry e : this.entries.values()) {
+            store.add(e.name, e.hash);
+        }
+        return store;
+    }
+
+    /**
+     * Folds index.log into base.log and rewrites index.phx.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        File base = new File(this.dir, BASE);
+        File tmp = new File(this.dir, BASE + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 1 << 16));
+        try {
+            writeHeader(out, this.hashLength, this.config);
+            for (Entry e : this.entries.values()) {
+                out.writeByte(ADD);
+                out.writeUTF(e.name);
+                out.writeLong(e.hash);
+                out.writeLong(e.modified);
+                out.writeLong(e.length);
+                out.writeByte(e.digest.length);
+                out.write(e.digest);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), base.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        // base.log now has everything, start a new log
+        if (this.log != null) {
+            this.log.close();
+            this.log = null;
+        }
+        new FileOutputStream(new File(this.dir, LOG)).close();
+        this.pending = 0;
+
+        File index = new File(this.dir, INDEX);
+        File indexTmp = new File(this.dir, INDEX + ".tmp");
+        HashIndexFile.write(this.snapshot(), indexTmp);
+        Files.move(indexTmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Compacts every period in a background thread once at least minPending
+     * records have been appended.
+     */
+    public synchronized void startCompaction(long period, TimeUnit unit,
+            final int minPending) {
+        if (this.compactor != null) {
+            return;
+        }
+        this.compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "index-compactor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.compactor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    if (IncrementalIndex.this.pending() >= minPending) {
+                        IncrementalIndex.this.compact();
+                    }
+                } catch (IOException e) {
+                    System.err.println("compaction of " + IncrementalIndex.this.dir
+                            + " failed: " + e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    public synchronized void close() throws IOException {
+        if (this.compactor != null) {
+            this.compactor.shutdownNow();
+            this.compactor = null;
+        }
+        if (this.log != null) {
+            this.log.close();
+            this.log = null;
+        }
+    }
+
+    /**
+     * Brings the index in line with an image tree. Records are named by
+     * their path relative to root ('/' separated); records of files no
+     * longer under root are removed.
+     *
+     * @param root
+     * @param hasher
+     *            configured with the index's HashConfig, any for a new index
+     * @param threads
+     * @return UpdateStats
+     * @throws IOException
+     *             also if hasher makes another hash than the index holds
+     * @throws InterruptedException
+     */
+    public UpdateStats update(File root, final ImagePHash hasher, int threads)
+            throws IOException, InterruptedException {
+        // checked before any image is hashed, put() would only reject them one by one
+        if (hasher.config().bits() > PHash.MAX_LENGTH) {
+            throw new IllegalArgumentException("the index log holds hashes of up to "
+                    + PHash.MAX_LENGTH + " bits, " + hasher.config() + " makes "
+                    + hasher.config().bits());
+        }
+        HashConfig config = this.config();
+        if (config != null && !config.equals(hasher.config())) {
+            throw new IOException(this.dir + " holds " + config + " hashes, the hasher makes "
+                    + hasher.config());
+        }
+        List<File> files = new ArrayList<File>();
+        BulkIndexer.collect(root, files);
+        int prefix = root.getPath().length() + 1;
+        UpdateStats stats = new UpdateStats();
+        Set<String> seen = new HashSet<String>();
+        List<String> names = new ArrayList<String>();
+        List<Future<Change>> futures = new ArrayList<Future<Change>>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (final File f : files) {
+                final String name = f.getPath().substring(prefix)
+                        .replace(File.separatorChar, '/');
+                seen.add(name);
+                final Entry old = this.get(name);
+                if (old != null && old.modified == f.lastModified()
+                        && old.length == f.length()) {
+                    stats.unchanged++;
+                    continue;
+                }
+                names.add(name);
+                futures.add(pool.submit(new Callable<Change>() {
+                    public Change call() throws Exception {
+                        return IncrementalIndex.this.rehash(hasher, f, old);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    Change c = futures.get(i).get();
+                    this.put(names.get(i), c.hash, hasher.config(), c.modified, c.length,
+                            c.digest);
+                    if (c.sameBytes) {
+                        stats.touched++;
+                    } else {
+                        stats.hashed++;
+                    }
+                } catch (ExecutionException e) {
+                    stats.failed++;
+                    System.err.println(names.get(i) + ": " + e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        List<String> gone = new ArrayList<String>();
+        synchronized (this) {
+            for (String name : this.entries.keySet()) {
+                if (!seen.contains(name)) {
+                    gone.add(name);
+                }
+            }
+        }
+        for (String name : gone) {
+            this.remove(name);
+            stats.removed++;
+        }
+        return stats;
+    }
+
+    private static final class Change {
+        final PHash hash;
+        final long modified;
+        final long length;
+        final byte[] digest;
+        final boolean sameBytes;
+
+        Change(PHash hash, long modified, long length, byte[] digest, boolean sameBytes) {
+            this.hash = hash;
+            this.modified = modified;
+            this.length = length;
+            this.digest = digest;
+            this.sameBytes = sameBytes;
+        }
+    }
+
+    // reads the file once; decodes it only if the digest changed
+    private Change rehash(ImagePHash hasher, File f, Entry old) throws Exception {
+        long modified = f.lastModified();
+        byte[] data = Files.readAllBytes(f.toPath());
+        byte[] digest = ContentDigest.of(data);
+        if (old != null && Arrays.equals(old.digest, digest)) {
+            int length;
+            synchronized (this) {
+                length = this.hashLength;
+            }
+            return new Change(new PHash(old.hash, length), modified, data.length,
+                    digest, true);
+        }
+        PHash hash = hasher.getPHash(new ByteArrayInputStream(data));
+        return new Change(hash, modified, data.length, digest, false);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: IncrementalIndex <index dir> update <image root> [threads]");
+            System.out.println("       IncrementalIndex <index dir> remove <name>...");
+            System.out.println("       IncrementalIndex <index dir> compact");
+            return;
+        }
+        Metrics.fromSystemProperties();
+        long start = System.currentTimeMillis();
+        IncrementalIndex index = open(new File(args[0]));
+        try {
+            if ("update".equals(args[1]) && args.length > 2) {
+                int threads = args.length > 3 ? Integer.parseInt(args[3])
+                        : Runtime.getRuntime().availableProcessors();
+                // -Dphash.hash picks the hash of a new index; an existing one keeps its own
+                HashConfig config = index.config();
+                if (config == null) {
+                    config = HashConfig.fromSystemProperties();
+                } else if (System.getProperty("phash.hash") != null
+                        && !config.equals(HashConfig.fromSystemProperties())) {
+                    throw new IOException(args[0] + " holds " + config + " hashes, not "
+                            + HashConfig.fromSystemProperties());
+                }
+                if (config.bits() > PHash.MAX_LENGTH) {
+                    System.out.println("the index log holds hashes of up to " + PHash.MAX_LENGTH
+                            + " bits, " + config + " makes " + config.bits());
+                    return;
+                }
+                ImagePHash hasher = new ImagePHash(config);
+                HashCache cache = HashCache.fromSystemProperties(hasher);
+                UpdateStats stats = index.update(new File(args[2]), hasher, threads);
+                if (cache != null) {
+                    cache.close();
+                }
+                System.out.println(stats);
+                // a log longer than a quarter of the index is worth folding in
+                if (index.pending() > 0 && index.pending() >= index.size() / 4) {
+                    index.compact();
+                    System.out.println("compacted");
+                }
+            } else if ("remove".equals(args[1])) {
+                int removed = 0;
+                for (int i = 2; i < args.length; i++) {
+                    if (index.remove(args[i])) {
+                        removed++;
+                    }
+                }
+                System.out.println("removed " + removed);
+            } else if ("compact".equals(args[1])) {
+                index.compact();
+            } else {
+                System.out.println("unknown command: " + args[1]);
+                return;
+            }
+            System.out.println(index.size() + " records, " + index.pending()
+                    + " in the log (" + (System.currentTimeMillis() - start) + " ms)");
+        } finally {
+            index.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package phash;
+
+import java.io.File;
+import java.util.Random;
+
+/*
+* function: checks the HammingKernels against each other and measures scan
+* throughput, in hashes per second on one core (single-threaded).
+* usage: KernelVerify <hashtxt dir or .phx> [records] [queries] [maxDistance]
+*        records > catalogue size tiles the catalogue with random bit flips
+*        run with --add-modules jdk.incubator.vector to include the SIMD kernel
+*/
+public class KernelVerify {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("usage: KernelVerify <hashtxt dir or .phx> [records] [queries] [maxDistance]");
+            return;
+        }
+        HashStore catalogue = HashIndexFile.openStore(new File(args[0]));
+        int records = args.length > 1 ? Integer.parseInt(args[1]) : catalogue.size();
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int maxDistance = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        int bits = catalogue.hashLength();
+
+        Random rnd = new Random(534);
+        long[] hashes = new long[records];
+        for (int i = 0; i < records; i++) {
+            long h = catalogue.hash(i % catalogue.size());
+            if (i >= catalogue.size()) {
+                h ^= 1L << rnd.nextInt(bits);
+                h ^= 1L << rnd.nextInt(bits);
+            }
+            hashes[i] = h;
+        }
+        long[] q = new long[queries];
+        for (int i = 0; i < queries; i++) {
+            q[i] = hashes[rnd.nextInt(records)] ^ (1L << rnd.nextInt(bits));
+        }
+
+        HammingKernel scalar = HammingKernel.Kernels.select("scalar");
+        HammingKernel vector = HammingKernel.Kernels.vector();
+        System.out.println("records: " + records + "  bits: " + bits + "  queries: "
+                + queries + "  selected kernel: " + HammingKernel.get().name());
+        if (vector == null) {
+            System.out.println("vector kernel unavailable (not built, or no --add-modules jdk.incubator.vector)");
+        }
+
+        HammingKernel[] kernels = vector != null
+                ? new HammingKernel[] { scalar, vector } : new HammingKernel[] { scalar };
+        TopKCollector[] expected = new TopKCollector[queries];
+        long[] expectedHits = new long[queries];
+        for (HammingKernel kernel : kernels) {
+            int mismatch = 0;
+            long topNanos = 0, withinNanos = 0;
+            // three passes, the first ones only warm up the JIT
+            for (int pass = 0; pass < 3; pass++) {
+                mismatch = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < queries; i++) {
+                    TopKCollector top = new TopKCollector(12);
+                    kernel.topK(hashes, 0, records, 0, q[i], top);
+                    top.finish();
+                    if (expected[i] == null) {
+                        expected[i] = top;
+                    } else if (!sameIds(top, expected[i])) {
+                        mismatch++;
+                    }
+                }
+                topNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < queries; i++) {
+                    final long[] sum = new long[1];
+                    kernel.within(hashes, 0, records, 0, q[i], maxDistance,
+                            new MultiIndexHash.HitVisitor() {
+                                public void hit(int id, int distance) {
+                                    sum[0] = sum[0] * 31 + id * 64 + distance;
+                                }
+                            });
+                    if (kernel == scalar) {
+                        expectedHits[i] = sum[0];
+                    } else if (expectedHits[i] != sum[0]) {
+                        mismatch++;
+                    }
+                }
+                withinNanos = System.nanoTime() - start;
+            }
+            double scanned = (double) records * queries;
+            System.out.println(String.format("%-14s top-12 %6.0f M hashes/s  within %d %6.0f M hashes/s  mismatches %d",
+                    kernel.name(), scanned * 1000 / topNanos, maxDistance,
+                    scanned * 1000 / withinNanos, mismatch));
+        }
+    }
+
+    private static boolean sameIds(TopKCollector a, TopKCollector b) {
+        if (a.count() != b.count()) {
+            return false;
+        }
+        for (int r = 0; r < a.count(); r++) {
+            if (a.id(r) != b.id(r) || a.distance(r) != b.distance(r)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,191 @@
+package phash;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/*
+* function: lock-free latency histogram for hot paths.
+* Values (nanoseconds) go into log-linear buckets: exact below 16, then 8
+* buckets per power of two, so a percentile is off by at most 1/8 of its
+* value. Every bucket is a LongAdder, so concurrent record() calls from
+* many threads do not contend; reading is a (non-atomic) sum over them.
+*/
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = 16 + (63 - 4) * SUB_BUCKETS;
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    /**
+     * Point-in-time view of a histogram, in microseconds. Its getters make
+     * it an open type, so it shows up as one composite in JMX consoles.
+     */
+    public static final class Summary {
+        private final String name;
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double max;
+
+        Summary(String name, long count, double mean, double p50, double p90, double p99,
+                double max) {
+            this.name = name;
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public double getMeanMicros() {
+            return this.mean;
+        }
+
+        public double getP50Micros() {
+            return this.p50;
+        }
+
+        public double getP90Micros() {
+            return this.p90;
+        }
+
+        public double getP99Micros() {
+            return this.p99;
+        }
+
+        public double getMaxMicros() {
+            return this.max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus",
+                    this.name, this.count, this.mean, this.p50, this.p90, this.p99, this.max);
+        }
+    }
+
+    private final String name;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(MAX, 0);
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+        for (int b = 0; b < BUCKETS; b++) {
+            this.buckets[b] = new LongAdder();
+        }
+    }
+
+    public String name() {
+        return this.name;
+    }
+
+    /**
+     * @param nanos
+     *            one measured duration; negative values count as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        this.buckets[bucket(nanos)].increment();
+        this.sum.add(nanos);
+        this.max.accumulate(nanos);
+    }
+
+    static int bucket(long v) {
+        if (v < 16) {
+            return (int) v;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(v); // 4..62
+        return 16 + (e - 4) * SUB_BUCKETS + (int) ((v >>> (e - 3)) & (SUB_BUCKETS - 1));
+    }
+
+    // largest value falling into bucket b
+    static long upperBound(int b) {
+        if (b < 16) {
+            return b;
+        }
+        int e = 4 + (b - 16) / SUB_BUCKETS;
+        long sub = (b - 16) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (e - 3)) - 1;
+    }
+
+    public long count() {
+        long n = 0;
+        for (LongAdder b : this.buckets) {
+            n += b.sum();
+        }
+        return n;
+    }
+
+    /**
+     * @param p
+     *            0..1, e.g. 0.99
+     * @return upper bound of the bucket holding the p-quantile, nanoseconds;
+     *         0 if nothing was recorded
+     */
+    public long percentile(double p) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            counts[b] = this.buckets[b].sum();
+            n += counts[b];
+        }
+        return percentile(counts, n, p);
+    }
+
+    private static long percentile(long[] counts, long n, double p) {
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return upperBound(b);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    public Summary summary() {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            counts[b] = this.buckets[b].sum();
+            n += counts[b];
+        }
+        long max = this.max.get();
+        return new Summary(this.name, n, n == 0 ? 0 : this.sum.sum() / 1000.0 / n,
+                Math.min(max, percentile(counts, n, 0.50)) / 1000.0,
+                Math.min(max, percentile(counts, n, 0.90)) / 1000.0,
+                Math.min(max, percentile(counts, n, 0.99)) / 1000.0, max / 1000.0);
+    }
+
+    public void reset() {
+        for (LongAdder b : this.buckets) {
+            b.reset();
+        }
+        this.sum.reset();
+        this.max.reset();
+    }
+}
@@ -0,0 +1,186 @@
+package phash;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/*
+* function: one-pass grayscale + downscale straight from the raster.
+* Replaces the resize (Graphics2D.drawImage) -> grayscale (ColorConvertOp)
+* -> getRGB(x, y) pipeline with a box filter: each of the size x size cells
+* is the mean gray of a samples x samples grid of source pixels spread
+* evenly over the cell (the whole cell when it is smaller than that).
+* With samples = 1 this is the nearest-neighbour pick drawImage does.
+*
+* The gray of a pixel is what ColorConvertOp(CS_GRAY) + getRGB give:
+*   sRGB(0.2225 * lin(R) + 0.7169 * lin(G) + 0.0606 * lin(B))
+* (drawImage copies TYPE_BYTE_GRAY samples as they are, so those are
+* used directly). The colour conversion is a few table lookups.
+* TYPE_BYTE_GRAY, TYPE_3BYTE_BGR and TYPE_INT_(A)RGB pixels are read from
+* the DataBuffer directly, anything else through getRGB.
+*
+* Not thread-safe: holds sample position buffers, use one per thread.
+*/
+final class LumaDownscaler {
+
+    // D50 luminance weights of the sRGB ICC profile, as used by ColorConvertOp
+    private static final double WR = 0.2225;
+    private static final double WG = 0.7169;
+    private static final double WB = 0.0606;
+
+    private static final int ENCODE_STEPS = 1 << 16;
+
+    private static final double[] LIN_R = new double[256];
+    private static final double[] LIN_G = new double[256];
+    private static final double[] LIN_B = new double[256];
+    private static final byte[] ENCODE = new byte[ENCODE_STEPS + 1];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            double c = v / 255.0;
+            double lin = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+            LIN_R[v] = WR * lin;
+            LIN_G[v] = WG * lin;
+            LIN_B[v] = WB * lin;
+        }
+        for (int i = 0; i <= ENCODE_STEPS; i++) {
+            double lin = (double) i / ENCODE_STEPS;
+            double c = lin <= 0.0031308 ? lin * 12.92 : 1.055 * Math.pow(lin, 1 / 2.4) - 0.055;
+            ENCODE[i] = (byte) Math.round(c * 255);
+        }
+    }
+
+    private final int size;
+    private final double[] acc;
+    private int[] xs = new int[0];
+    private int[] ys = new int[0];
+
+    /**
+     * @param size
+     *            output is size x size
+     */
+    LumaDownscaler(int size) {
+        this.size = size;
+        this.acc = new double[size];
+    }
+
+    /**
+     * @param src
+     *            decoded image of any size
+     * @param vals
+     *            size x size output, vals[x][y] like getBlue(img, x, y) of
+     *            the AWT pipeline
+     * @param samples
+     *            samples per cell and axis, at most; 1 is nearest neighbour
+     */
+    void downscale(BufferedImage src, double[][] vals, int samples) {
+        if (samples < 1) {
+            throw new IllegalArgumentException("samples must be >= 1: " + samples);
+        }
+        int w = src.getWidth();
+        int h = src.getHeight();
+        int n = this.size;
+        if (this.xs.length < n * samples) {
+            this.xs = new int[n * samples];
+            this.ys = new int[n * samples];
+        }
+        int sx = positions(w, n, Math.min(samples, Math.max(1, w / n)), this.xs);
+        int sy = positions(h, n, Math.min(samples, Math.max(1, h / n)), this.ys);
+
+        Raster raster = src.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer db = raster.getDataBuffer();
+        int type = src.getType();
+        boolean direct = raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0;
+
+        for (int ty = 0; ty < n; ty++) {
+            for (int tx = 0; tx < n; tx++) {
+                this.acc[tx] = 0;
+            }
+            for (int k = 0; k < sy; k++) {
+                int y = this.ys[ty * sy + k];
+                if (direct && type == BufferedImage.TYPE_BYTE_GRAY
+                        && sm instanceof ComponentSampleModel
+                        && db instanceof DataBufferByte) {
+                    this.rowGray((ComponentSampleModel) sm,
+                            ((DataBufferByte) db).getData(), db.getOffset(), y, sx);
+                } else if (direct && type == BufferedImage.TYPE_3BYTE_BGR
+                        && sm instanceof ComponentSampleModel
+                        && db instanceof DataBufferByte) {
+                    this.rowBgr((ComponentSampleModel) sm,
+                            ((DataBufferByte) db).getData(), db.getOffset(), y, sx);
+                } else if (direct && (type == BufferedImage.TYPE_INT_RGB
+                        || type == BufferedImage.TYPE_INT_ARGB)
+                        && sm instanceof SinglePixelPackedSampleModel
+                        && db instanceof DataBufferInt) {
+                    int[] data = ((DataBufferInt) db).getData();
+                    int p = db.getOffset()
+                            + ((SinglePixelPackedSampleModel) sm).getOffset(0, y);
+                    for (int i = 0; i < n * sx; i++) {
+                        this.acc[i / sx] += gray(data[p + this.xs[i]]);
+                    }
+                } else {
+                    for (int i = 0; i < n * sx; i++) {
+                        this.acc[i / sx] += gray(src.getRGB(this.xs[i], y));
+                    }
+                }
+            }
+            for (int tx = 0; tx < n; tx++) {
+                vals[tx][ty] = this.acc[tx] / (sx * sy);
+            }
+        }
+    }
+
+    private void rowGray(ComponentSampleModel csm, byte[] data, int base,
+            int y, int sx) {
+        int p = base + csm.getOffset(0, y, 0);
+        int stride = csm.getPixelStride();
+        for (int i = 0; i < this.size * sx; i++) {
+            this.acc[i / sx] += data[p + this.xs[i] * stride] & 0xff;
+        }
+    }
+
+    private void rowBgr(ComponentSampleModel csm, byte[] data, int base,
+            int y, int sx) {
+        int r = base + csm.getOffset(0, y, 0);
+        int g = base + csm.getOffset(0, y, 1);
+        int b = base + csm.getOffset(0, y, 2);
+        int stride = csm.getPixelStride();
+        for (int i = 0; i < this.size * sx; i++) {
+            int x = this.xs[i] * stride;
+            this.acc[i / sx] += encode(LIN_R[data[r + x] & 0xff]
+                    + LIN_G[data[g + x] & 0xff] + LIN_B[data[b + x] & 0xff]);
+        }
+    }
+
+    /*
+     * Fills pos with n cells x s sample coordinates in 0..len-1. Sample k of
+     * cell t sits at (t + (k + 0.5) / s) * len / n, so s = 1 gives the
+     * pixel centre drawImage picks.
+     */
+    private static int positions(int len, int n, int s, int[] pos) {
+        for (int t = 0; t < n; t++) {
+            for (int k = 0; k < s; k++) {
+                long num = ((long) t * s + k) * 2 + 1; // (t * s + k + 0.5) * 2
+                pos[t * s + k] = (int) Math.min(len - 1, num * len / (2L * n * s));
+            }
+        }
+        return s;
+    }
+
+    private static int gray(int argb) {
+        return encode(LIN_R[(argb >> 16) & 0xff] + LIN_G[(argb >> 8) & 0xff]
+                + LIN_B[argb & 0xff]);
+    }
+
+    private static int encode(double lin) {
+        int i = (int) (lin * ENCODE_STEPS + 0.5);
+        return ENCODE[i > ENCODE_STEPS ? ENCODE_STEPS : i] & 0xff;
+    }
+}
@@ -0,0 +1,72 @@
+package phash;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+* function: HashStore over a memory-mapped .phx index, see HashIndexFile.
+* Only absolute gets are used, so one instance can be read by many threads.
+*/
+public class MappedHashStore implements HashStore {
+
+    private final int count;
+    private final int hashLength;
+    private final int words;
+    private final HashConfig config;
+    private final LongBuffer hashes;
+    private final LongBuffer nameOffsets;
+    private final ByteBuffer nameBlob;
+
+    MappedHashStore(int count, int hashLength, HashConfig config,
+            LongBuffer hashes, LongBuffer nameOffsets, ByteBuffer nameBlob) {
+        this.count = count;
+        this.hashLength = hashLength;
+        this.words = PHash.words(hashLength);
+        this.config = config;
+        this.hashes = hashes;
+        this.nameOffsets = nameOffsets;
+        this.nameBlob = nameBlob;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    public int hashLength() {
+        return this.hashLength;
+    }
+
+    public long hash(int i) {
+        if (this.words != 1) {
+            throw new IllegalStateException(this.hashLength
+                    + "-bit hashes span " + this.words + " words, use word(i, w)");
+        }
+        return this.hashes.get(i);
+    }
+
+    public String name(int i) {
+        int start = (int) this.nameOffsets.get(i);
+        int end = (int) this.nameOffsets.get(i + 1);
+        byte[] b = new byte[end - start];
+        for (int k = 0; k < b.length; k++) {
+            b[k] = this.nameBlob.get(start + k);
+        }
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int words() {
+        return this.words;
+    }
+
+    @Override
+    public long word(int i, int w) {
+        return this.hashes.get(i * this.words + w);
+    }
+
+    @Override
+    public HashConfig config() {
+        return this.config;
+    }
+}
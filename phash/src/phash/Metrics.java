@@ -0,0 +1,217 @@
+package phash;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+* function: process-wide counters and latency histograms of the hashing
+* pipeline and the searches, cheap enough to stay on in production.
+*
+* Hashing records one LatencyHistogram per pipeline stage (decode,
+* resize, grayscale, DCT, bit extraction; with LumaDownscaler resize and
+* grayscale are one pass, recorded as resize), the scans count the records
+* they look at and every top-K query records its latency. A stage costs
+* two System.nanoTime() calls and a few uncontended LongAdder updates,
+* nothing next to the milliseconds an image decode takes; -Dphash.metrics=false
+* skips even that.
+*
+* Read them through JMX (phash:type=Metrics, e.g. in jconsole) or as a
+* text snapshot logged every few seconds to the "phash.metrics" logger:
+* the command line tools do both when run with -Dphash.metrics.jmx=true
+* and/or -Dphash.metrics.dump=<seconds>.
+*/
+public final class Metrics implements MetricsMXBean {
+
+    static final boolean ENABLED = !"false".equals(System.getProperty("phash.metrics"));
+
+    public static final LatencyHistogram DECODE = new LatencyHistogram("decode");
+    public static final LatencyHistogram RESIZE = new LatencyHistogram("resize");
+    public static final LatencyHistogram GRAYSCALE = new LatencyHistogram("grayscale");
+    public static final LatencyHistogram DCT = new LatencyHistogram("dct");
+    public static final LatencyHistogram BITS = new LatencyHistogram("bits");
+    public static final LatencyHistogram QUERY = new LatencyHistogram("query");
+
+    public static final LongAdder IMAGES_HASHED = new LongAdder();
+    public static final LongAdder DECODE_FAILURES = new LongAdder();
+    public static final LongAdder RECORDS_SCANNED = new LongAdder();
+
+    static final String OBJECT_NAME = "phash:type=Metrics";
+
+    private static final Logger LOG = Logger.getLogger("phash.metrics");
+    private static final Metrics INSTANCE = new Metrics();
+    private static ScheduledExecutorService dumper;
+
+    private Metrics() {
+    }
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return System.nanoTime(), or 0 when metrics are off
+     */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since start into h.
+     *
+     * @return System.nanoTime() (the start of the next stage), or 0 when
+     *         metrics are off
+     */
+    static long stop(LatencyHistogram h, long start) {
+        if (!ENABLED) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        h.record(now - start);
+        return now;
+    }
+
+    static void scanned(long records) {
+        if (ENABLED) {
+            RECORDS_SCANNED.add(records);
+        }
+    }
+
+    static void hashed() {
+        if (ENABLED) {
+            IMAGES_HASHED.increment();
+        }
+    }
+
+    static void decodeFailed() {
+        if (ENABLED) {
+            DECODE_FAILURES.increment();
+        }
+    }
+
+    /**
+     * Registers the MXBean with the platform MBean server; once per JVM.
+     */
+    public static synchronized void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(INSTANCE, name);
+        }
+    }
+
+    /**
+     * Logs getSnapshot() to the "phash.metrics" logger (INFO) every period,
+     * from a daemon thread; once per JVM.
+     */
+    public static synchronized void startDump(long period, TimeUnit unit) {
+        if (dumper != null) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-dump");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        dumper.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                LOG.info(INSTANCE.getSnapshot());
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * JMX and/or periodic dump as asked for by -Dphash.metrics.jmx=true and
+     * -Dphash.metrics.dump=<seconds>.
+     */
+    public static void fromSystemProperties() {
+        if (Boolean.getBoolean("phash.metrics.jmx")) {
+            try {
+                registerMBean();
+            } catch (JMException e) {
+                LOG.warning("cannot register " + OBJECT_NAME + ": " + e);
+            }
+        }
+        Integer seconds = Integer.getInteger("phash.metrics.dump");
+        if (seconds != null && seconds > 0) {
+            startDump(seconds, TimeUnit.SECONDS);
+            // the last partial period too; the logging system may already be gone by then
+            Runtime.getRuntime().addShutdownHook(new Thread("metrics-final") {
+                @Override
+                public void run() {
+                    System.err.println(INSTANCE.getSnapshot());
+                }
+            });
+        }
+    }
+
+    public long getImagesHashed() {
+        return IMAGES_HASHED.sum();
+    }
+
+    public long getDecodeFailures() {
+        return DECODE_FAILURES.sum();
+    }
+
+    public long getRecordsScanned() {
+        return RECORDS_SCANNED.sum();
+    }
+
+    public LatencyHistogram.Summary getDecode() {
+        return DECODE.summary();
+    }
+
+    public LatencyHistogram.Summary getResize() {
+        return RESIZE.summary();
+    }
+
+    public LatencyHistogram.Summary getGrayscale() {
+        return GRAYSCALE.summary();
+    }
+
+    public LatencyHistogram.Summary getDct() {
+        return DCT.summary();
+    }
+
+    public LatencyHistogram.Summary getBits() {
+        return BITS.summary();
+    }
+
+    public LatencyHistogram.Summary getQuery() {
+        return QUERY.summary();
+    }
+
+    public String getSnapshot() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("images hashed ").append(this.getImagesHashed())
+                .append(", decode failures ").append(this.getDecodeFailures())
+                .append(", records scanned ").append(this.getRecordsScanned());
+        for (LatencyHistogram h : new LatencyHistogram[] { DECODE, RESIZE, GRAYSCALE, DCT,
+                BITS, QUERY }) {
+            if (h.count() > 0) {
+                sb.append(System.lineSeparator()).append("  ").append(h.summary());
+            }
+        }
+        return sb.toString();
+    }
+
+    public void reset() {
+        for (LatencyHistogram h : new LatencyHistogram[] { DECODE, RESIZE, GRAYSCALE, DCT,
+                BITS, QUERY }) {
+            h.reset();
+        }
+        IMAGES_HASHED.reset();
+        DECODE_FAILURES.reset();
+        RECORDS_SCANNED.reset();
+    }
+}
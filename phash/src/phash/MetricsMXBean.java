@@ -0,0 +1,34 @@
+package phash;
+
+/*
+* function: the JMX view of Metrics, registered as phash:type=Metrics.
+* Latencies are LatencyHistogram.Summary composites (count, mean and
+* percentiles in microseconds).
+*/
+public interface MetricsMXBean {
+
+    long getImagesHashed();
+
+    long getDecodeFailures();
+
+    long getRecordsScanned();
+
+    LatencyHistogram.Summary getDecode();
+
+    LatencyHistogram.Summary getResize();
+
+    LatencyHistogram.Summary getGrayscale();
+
+    LatencyHistogram.Summary getDct();
+
+    LatencyHistogram.Summary getBits();
+
+    LatencyHistogram.Summary getQuery();
+
+    /**
+     * @return everything above as text, as written by the periodic dump
+     */
+    String getSnapshot();
+
+    void reset();
+}
@@ -0,0 +1,224 @@
+package phash;
+
+/*
+* function: multi-index hashing (Norouzi et al.) over a HashStore for
+* sub-linear Hamming radius and top-K search.
+*
+* Every hash is cut into m disjoint substrings and each substring gets its
+* own table mapping substring value -> record ids. If two hashes are
+* within distance r, by the pigeonhole principle at least one of their m
+* substrings is within floor(r / m), so it is enough to probe, in every
+* table, the substring values within that small radius of the query's.
+*
+* Probing is done in rounds s = 0, 1, 2, ... each looking only at values
+* exactly s bits away. A record is reported in the round equal to its
+* smallest substring distance, from the first table reaching it, so it is
+* seen once without any per-query visited set. After round s every record
+* within m * (s + 1) - 1 of the query has been seen, which is what lets
+* topK stop early.
+*
+* Use it for radius queries (DuplicateFinder). topK is exact but only pays
+* off on corpora far larger than a hashtxt catalogue: on its 6,380 records
+* it is about 3x slower than one HammingKernel scan, because the K-th best
+* of a 49-bit hash is rarely close enough for the rounds to stop early.
+* Top-K callers stay on HashSearch.topK / ShardedIndex.
+*
+* The tables are immutable once built and queries allocate nothing but
+* their result, so one instance can be shared by many threads.
+*
+* check: SearchVerify <hashtxt dir or .phx> mih [queries] [radius] [k]
+*        compares recall and latency against the brute-force scan
+*        (this was MultiIndexHash's own main before SearchVerify)
+*/
+public class MultiIndexHash {
+
+    // a direct-address table has 2^width slots; keep that under 64MB
+    private static final int MAX_WIDTH = 24;
+
+    public interface HitVisitor {
+        void hit(int id, int distance);
+    }
+
+    private final HashStore store;
+    private final int m;
+    private final int[] shift;
+    private final int[] width;
+    private final long[] mask; // substring mask in hash bit positions
+    private final int[][] offsets; // offsets[j][key] .. offsets[j][key + 1] in ids[j]
+    private final int[][] ids;
+
+    public MultiIndexHash(HashStore store) {
+        this(store, defaultTables(store.hashLength(), store.size()));
+    }
+
+    /**
+     * @param store
+     * @param m
+     *            number of substrings; the MIH paper suggests about
+     *            hashLength / log2(size)
+     */
+    public MultiIndexHash(HashStore store, int m) {
+        int bits = store.hashLength();
+        if (m < 1 || m > bits) {
+            throw new IllegalArgumentException("m must be in 1.." + bits + ": " + m);
+        }
+        if ((bits + m - 1) / m > MAX_WIDTH) {
+            throw new IllegalArgumentException("substrings wider than "
+                    + MAX_WIDTH + " bits, use more than " + m + " tables");
+        }
+        this.store = store;
+        this.m = m;
+        this.shift = new int[m];
+        this.width = new int[m];
+        this.mask = new long[m];
+
+        // the first (bits % m) substrings are one bit wider
+        int pos = bits;
+        for (int j = 0; j < m; j++) {
+            int w = bits / m + (j < bits % m ? 1 : 0);
+            pos -= w;
+            this.shift[j] = pos;
+            this.width[j] = w;
+            this.mask[j] = ((1L << w) - 1) << pos;
+        }
+
+        int n = store.size();
+        this.offsets = new int[m][];
+        this.ids = new int[m][];
+        for (int j = 0; j < m; j++) {
+            // counting sort of the record ids by substring value
+            int[] off = new int[(1 << this.width[j]) + 1];
+            for (int i = 0; i < n; i++) {
+                off[this.key(j, store.hash(i)) + 1]++;
+            }
+            for (int key = 1; key < off.length; key++) {
+                off[key] += off[key - 1];
+            }
+            int[] fill = off.clone();
+            int[] tab = new int[n];
+            for (int i = 0; i < n; i++) {
+                tab[fill[this.key(j, store.hash(i))]++] = i;
+            }
+            this.offsets[j] = off;
+            this.ids[j] = tab;
+        }
+    }
+
+    static int defaultTables(int bits, int size) {
+        int logN = 32 - Integer.numberOfLeadingZeros(Math.max(size, 2) - 1);
+        int w = Math.min(MAX_WIDTH, Math.max(8, logN));
+        return Math.max(1, Math.min(bits, (bits + w - 1) / w));
+    }
+
+    public HashStore store() {
+        return this.store;
+    }
+
+    public int tables() {
+        return this.m;
+    }
+
+    private int key(int j, long hash) {
+        return (int) ((hash & this.mask[j]) >>> this.shift[j]);
+    }
+
+    /**
+     * Visits every record within Hamming distance r of query, each once,
+     * in no particular order.
+     */
+    public void radius(long query, int r, HitVisitor visitor) {
+        int rounds = Math.min(r / this.m, this.maxWidth());
+        for (int s = 0; s <= rounds; s++) {
+            this.round(query, s, r, visitor, null);
+        }
+    }
+
+    /**
+     * @return number of records within Hamming distance r of query
+     */
+    public int count(long query, int r) {
+        final int[] n = new int[1];
+        this.radius(query, r, new HitVisitor() {
+            public void hit(int id, int distance) {
+                n[0]++;
+            }
+        });
+        return n[0];
+    }
+
+    /**
+     * Exact top-K: same result (ties included) as HashSearch.topK, but
+     * slower than it on catalogue-sized stores, see the class comment.
+     */
+    public TopKCollector topK(long query, int k) {
+        long start = Metrics.start();
+        TopKCollector top = new TopKCollector(k);
+        int maxWidth = this.maxWidth();
+        for (int s = 0; s <= maxWidth; s++) {
+            this.round(query, s, Integer.MAX_VALUE, null, top);
+            // everything within m * (s + 1) - 1 has been seen by now
+            if (top.count() == Math.min(k, this.store.size())
+                    && top.worstDistance() <= this.m * (s + 1) - 1) {
+                break;
+            }
+        }
+        top.finish();
+        Metrics.stop(Metrics.QUERY, start);
+        return top;
+    }
+
+    private int maxWidth() {
+        return this.width[0];
+    }
+
+    private void round(long query, int s, int r, HitVisitor visitor,
+            TopKCollector top) {
+        for (int j = 0; j < this.m; j++) {
+            int w = this.width[j];
+            if (s > w) {
+                continue;
+            }
+            int qkey = this.key(j, query);
+            int[] off = this.offsets[j];
+            int[] tab = this.ids[j];
+            int limit = 1 << w;
+
+            // Gosper's hack: every w-bit flip pattern with exactly s bits set
+            int flips = (1 << s) - 1;
+            while (flips < limit) {
+                int key = qkey ^ flips;
+                for (int p = off[key]; p < off[key + 1]; p++) {
+                    int id = tab[p];
+                    long hash = this.store.hash(id);
+                    if (!this.firstSeenAt(query, hash, j, s)) {
+                        continue;
+                    }
+                    int d = PHash.distance(query, hash);
+                    if (top != null) {
+                        top.offer(d, id);
+                    } else if (d <= r) {
+                        visitor.hit(id, d);
+                    }
+                }
+                if (flips == 0) {
+                    break;
+                }
+                int c = flips & -flips;
+                int next = flips + c;
+                flips = (((next ^ flips) >>> 2) / c) | next;
+            }
+        }
+    }
+
+    // true if s is the smallest substring distance and j the first table with it
+    private boolean firstSeenAt(long query, long hash, int j, int s) {
+        long x = query ^ hash;
+        for (int t = 0; t < this.m; t++) {
+            int d = Long.bitCount(x & this.mask[t]);
+            if (d < s || (d == s && t < j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
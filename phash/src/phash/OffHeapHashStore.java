@@ -0,0 +1,286 @@
+package phash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+* function: growable HashStore kept outside the Java heap, in columns of
+* direct ByteBuffers:
+*   hashes   the packed hashes, words() longs per record
+*   offsets  where the name of record i starts in the blob, size()+1 longs
+*   blob     every name, UTF-8, back to back
+* Each column is a list of fixed-size chunks, so a large store grows
+* without copying and no column is bound by the 2 GB of one buffer; only
+* the first chunk starts small and doubles, so that the small stores of a
+* ShardedIndex do not take a full chunk each. A record costs the heap
+* nothing; a 50M catalogue of 64-bit hashes takes 400 MB of hashes, 400 MB
+* of offsets and the names in direct memory (-XX:MaxDirectMemorySize),
+* none of which the GC ever walks. Names become Strings only in name(i),
+* i.e. for the records a query reports.
+*
+* add is single-threaded; once filled, a store can be read by many threads
+* (only absolute gets and duplicates are used).
+*
+* check: SearchVerify <hashtxt dir or .phx> offheap [records]
+*        fills both stores with the catalogue repeated up to records and
+*        compares heap use and scan time
+*        (this was OffHeapHashStore's own main before SearchVerify)
+*/
+public class OffHeapHashStore implements GrowableHashStore {
+
+    static final int CHUNK_SHIFT = 20; // records per hash and offset chunk
+    static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+    static final int BLOB_SHIFT = 24; // bytes per name chunk
+    static final int BLOB_CHUNK = 1 << BLOB_SHIFT;
+    private static final int FIRST_CHUNK = 1024; // records; the names start at 16 KB
+
+    private final int hashLength;
+    private final int words;
+    private int size;
+    private LongBuffer[] hashes = new LongBuffer[0];
+    private LongBuffer[] offsets = new LongBuffer[0];
+    private ByteBuffer[] blob = new ByteBuffer[0];
+    private long blobSize;
+    private HashConfig config;
+
+    public OffHeapHashStore(int hashLength) {
+        this.hashLength = hashLength;
+        this.words = PHash.words(hashLength);
+        this.setOffset(0, 0);
+    }
+
+    /**
+     * Copies another store, e.g. to take a mapped index off the disk
+     * without moving it into the heap.
+     *
+     * @param src
+     * @return OffHeapHashStore
+     */
+    public static OffHeapHashStore copyOf(HashStore src) {
+        OffHeapHashStore store = new OffHeapHashStore(src.hashLength());
+        store.config = src.config();
+        int words = store.words;
+        for (int i = 0; i < src.size(); i++) {
+            store.addName(src.name(i));
+            for (int w = 0; w < words; w++) {
+                store.setWord(store.size, w, src.word(i, w));
+            }
+            store.size++;
+        }
+        return store;
+    }
+
+    /**
+     * @return true if -Dphash.store=offheap asks the loaders (HashTxt via
+     *         HashIndexFile.openStore, ShardedIndex.byFile, HashServer) for
+     *         off-heap stores
+     */
+    public static boolean requested() {
+        return "offheap".equals(System.getProperty("phash.store"));
+    }
+
+    public void add(String name, long hash) {
+        if (this.words != 1) {
+            throw new IllegalArgumentException(this.hashLength
+                    + "-bit store, add a PHash");
+        }
+        this.addName(name);
+        this.setWord(this.size, 0, hash);
+        this.size++;
+    }
+
+    public void add(String name, PHash hash) {
+        if (hash.length() != this.hashLength) {
+            throw new IllegalArgumentException("expected a " + this.hashLength
+                    + "-bit hash, got " + hash.length());
+        }
+        this.addName(name);
+        for (int w = 0; w < this.words; w++) {
+            this.setWord(this.size, w, hash.word(w));
+        }
+        this.size++;
+    }
+
+    // appends the name to the blob and records where it ends
+    private void addName(String name) {
+        byte[] b = name.getBytes(StandardCharsets.UTF_8);
+        long pos = this.blobSize;
+        for (int done = 0; done < b.length;) {
+            int chunk = (int) (pos >>> BLOB_SHIFT);
+            int at = (int) (pos & (BLOB_CHUNK - 1));
+            int n = Math.min(b.length - done, BLOB_CHUNK - at);
+            this.reserveBlob(chunk, at + n);
+            ByteBuffer dst = this.blob[chunk].duplicate();
+            dst.position(at);
+            dst.put(b, done, n);
+            done += n;
+            pos += n;
+        }
+        this.blobSize = pos;
+        this.setOffset(this.size + 1, pos);
+    }
+
+    private void setWord(int i, int w, long value) {
+        int chunk = i >>> CHUNK_SHIFT;
+        int at = (i & (CHUNK_RECORDS - 1)) * this.words + w;
+        this.hashes = reserve(this.hashes, chunk, at + 1, CHUNK_RECORDS * this.words);
+        this.hashes[chunk].put(at, value);
+    }
+
+    private void setOffset(int i, long value) {
+        int chunk = i >>> CHUNK_SHIFT;
+        int at = i & (CHUNK_RECORDS - 1);
+        this.offsets = reserve(this.offsets, chunk, at + 1, CHUNK_RECORDS);
+        this.offsets[chunk].put(at, value);
+    }
+
+    // makes column[chunk] hold at least need longs, doubling up to full
+    private static LongBuffer[] reserve(LongBuffer[] column, int chunk, int need, int full) {
+        if (chunk == column.length) {
+            column = Arrays.copyOf(column, chunk + 1);
+        }
+        LongBuffer old = column[chunk];
+        if (old == null || old.capacity() < need) {
+            int capacity = chunk > 0 ? full
+                    : Math.min(full, Math.max(need, old == null ? FIRST_CHUNK : old.capacity() * 2));
+            LongBuffer grown = ByteBuffer.allocateDirect(capacity * 8)
+                    .order(ByteOrder.nativeOrder()).asLongBuffer();
+            if (old != null) {
+                old = old.duplicate();
+                old.clear();
+                grown.put(old);
+                grown.clear();
+            }
+            column[chunk] = grown;
+        }
+        return column;
+    }
+
+    private void reserveBlob(int chunk, int need) {
+        if (chunk == this.blob.length) {
+            this.blob = Arrays.copyOf(this.blob, chunk + 1);
+        }
+        ByteBuffer old = this.blob[chunk];
+        if (old == null || old.capacity() < need) {
+            int capacity = chunk > 0 ? BLOB_CHUNK : Math.min(BLOB_CHUNK,
+                    Math.max(need, old == null ? FIRST_CHUNK * 16 : old.capacity() * 2));
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            if (old != null) {
+                old = old.duplicate();
+                old.clear();
+                grown.put(old);
+                grown.clear();
+            }
+            this.blob[chunk] = grown;
+        }
+    }
+
+    private long offset(int i) {
+        return this.offsets[i >>> CHUNK_SHIFT].get(i & (CHUNK_RECORDS - 1));
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int hashLength() {
+        return this.hashLength;
+    }
+
+    public long hash(int i) {
+        if (i >= this.size) {
+            throw new IndexOutOfBoundsException(i + " >= " + this.size);
+        }
+        if (this.words != 1) {
+            throw new IllegalStateException(this.hashLength
+                    + "-bit hashes span " + this.words + " words, use word(i, w)");
+        }
+        return this.hashes[i >>> CHUNK_SHIFT].get(i & (CHUNK_RECORDS - 1));
+    }
+
+    /**
+     * Copies the hashes of records from..from+len-1 of a single-word store
+     * into dst, for the scan kernels (see HashSearch.scan).
+     */
+    void copyHashes(int from, long[] dst, int len) {
+        if (this.words != 1) {
+            throw new IllegalStateException(this.hashLength
+                    + "-bit hashes span " + this.words + " words, use word(i, w)");
+        }
+        if (from + len > this.size) {
+            throw new IndexOutOfBoundsException((from + len) + " > " + this.size);
+        }
+        int off = 0;
+        while (off < len) {
+            int i = from + off;
+            LongBuffer src = this.hashes[i >>> CHUNK_SHIFT].duplicate();
+            src.position(i & (CHUNK_RECORDS - 1));
+            int n = Math.min(len - off, src.remaining());
+            src.get(dst, off, n);
+            off += n;
+        }
+    }
+
+    public String name(int i) {
+        if (i >= this.size) {
+            throw new IndexOutOfBoundsException(i + " >= " + this.size);
+        }
+        long pos = this.offset(i);
+        byte[] b = new byte[(int) (this.offset(i + 1) - pos)];
+        for (int done = 0; done < b.length;) {
+            ByteBuffer src = this.blob[(int) (pos >>> BLOB_SHIFT)].duplicate();
+            src.position((int) (pos & (BLOB_CHUNK - 1)));
+            int n = Math.min(b.length - done, src.remaining());
+            src.get(b, done, n);
+            done += n;
+            pos += n;
+        }
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int words() {
+        return this.words;
+    }
+
+    @Override
+    public long word(int i, int w) {
+        if (i >= this.size) {
+            throw new IndexOutOfBoundsException(i + " >= " + this.size);
+        }
+        return this.hashes[i >>> CHUNK_SHIFT].get((i & (CHUNK_RECORDS - 1)) * this.words + w);
+    }
+
+    @Override
+    public HashConfig config() {
+        return this.config;
+    }
+
+    public void setConfig(HashConfig config) {
+        if (config != null && config.bits() != this.hashLength) {
+            throw new IllegalArgumentException(config + " makes " + config.bits()
+                    + "-bit hashes, this store holds " + this.hashLength);
+        }
+        this.config = config;
+    }
+
+    /**
+     * @return direct memory held by the columns, in bytes
+     */
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (LongBuffer b : this.hashes) {
+            bytes += b.capacity() * 8L;
+        }
+        for (LongBuffer b : this.offsets) {
+            bytes += b.capacity() * 8L;
+        }
+        for (ByteBuffer b : this.blob) {
+            bytes += b.capacity();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,70 @@
+package phash;
+
+import java.awt.image.BufferedImage;
+
+/*
+* function: the eight ways to mirror an image and rotate it by multiples of
+* 90 degrees. Each is an optional transpose (swap x and y) followed by
+* optional mirrors along x (left-right) and y (upside down).
+*
+* On the DCT coefficients F[u][v] of ImagePHash (u along x, v along y)
+* these are exact symmetries of the transform:
+*   transpose   F[u][v] -> F[v][u]
+*   mirror x    F[u][v] -> (-1)^u F[u][v]
+*   mirror y    F[u][v] -> (-1)^v F[u][v]
+* so the pHash of every variant follows from the one DCT of the original
+* (ImagePHash.getOrientedPHashes). Only the mean of step 5 has to be
+* recomputed; that is why a variant cannot be derived from the hash bits.
+*/
+public enum Orientation {
+
+    IDENTITY(false, false, false), MIRROR(false, true, false), FLIP(false, false, true),
+    ROTATE_180(false, true, true), TRANSPOSE(true, false, false),
+    ROTATE_90(true, true, false), // clockwise
+    ROTATE_270(true, false, true), TRANSVERSE(true, true, true);
+
+    private final boolean transpose;
+    private final boolean mirrorX;
+    private final boolean mirrorY;
+
+    Orientation(boolean transpose, boolean mirrorX, boolean mirrorY) {
+        this.transpose = transpose;
+        this.mirrorX = mirrorX;
+        this.mirrorY = mirrorY;
+    }
+
+    /**
+     * Writes the top-left side x side DCT coefficients of the image in this
+     * orientation into out, given those of the original in F.
+     */
+    void transform(double[][] F, double[][] out, int side) {
+        for (int u = 0; u < side; u++) {
+            for (int v = 0; v < side; v++) {
+                double c = this.transpose ? F[v][u] : F[u][v];
+                boolean negate = (this.mirrorX && (u & 1) != 0) ^ (this.mirrorY && (v & 1) != 0);
+                out[u][v] = negate ? -c : c;
+            }
+        }
+    }
+
+    /**
+     * The image itself mirrored or rotated, e.g. to check transform against
+     * a real re-hash (OrientationVerify).
+     *
+     * @param img
+     * @return a new TYPE_INT_RGB image
+     */
+    public BufferedImage apply(BufferedImage img) {
+        int w = this.transpose ? img.getHeight() : img.getWidth();
+        int h = this.transpose ? img.getWidth() : img.getHeight();
+        BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) {
+                int a = this.mirrorX ? w - 1 - x : x;
+                int b = this.mirrorY ? h - 1 - y : y;
+                out.setRGB(x, y, this.transpose ? img.getRGB(b, a) : img.getRGB(a, b));
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,139 @@
+package phash;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/*
+* function: checks the orientation hashes derived from the DCT
+* (ImagePHash.getOrientedPHashes) against really mirroring / rotating the
+* images and hashing them again, then queries the catalogue with turned
+* images, plain and with HashSearch.topKAny, and times one topKAny scan
+* against eight topK scans.
+*
+* usage: OrientationVerify <hashtxt dir or .phx> <image dir> [images]
+*        images are found by file name if the catalogue holds them
+*/
+public class OrientationVerify {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: OrientationVerify <hashtxt dir or .phx> <image dir> [images]");
+            return;
+        }
+        HashStore store = ArrayHashStore.copyOf(HashIndexFile.openStore(new File(args[0])));
+        List<File> files = new ArrayList<File>();
+        BulkIndexer.collect(new File(args[1]), files);
+        int images = Math.min(files.size(), args.length > 2 ? Integer.parseInt(args[2]) : 40);
+        ImagePHash hasher = new ImagePHash(store.config() != null ? store.config() : HashConfig.DEFAULT);
+        Orientation[] all = Orientation.values();
+
+        // derived vs re-hashed, and what a turned upload finds
+        long[] bitsOff = new long[all.length];
+        int[] worst = new int[all.length];
+        int turned = 0, plainFound = 0, anyFound = 0, checked = 0;
+        for (int f = 0; f < images; f++) {
+            BufferedImage img = ImageIO.read(files.get(f));
+            if (img == null) {
+                continue;
+            }
+            // same pixel type as the turned copies, so only the turn differs
+            img = Orientation.IDENTITY.apply(img);
+            checked++;
+            PHash[] derived = hasher.getOrientedPHashes(img);
+            String name = files.get(f).getName();
+            for (int o = 0; o < all.length; o++) {
+                BufferedImage variant = all[o].apply(img);
+                int d = derived[o].distance(hasher.getPHash(variant));
+                bitsOff[o] += d;
+                worst[o] = Math.max(worst[o], d);
+                if (o == 0) {
+                    continue;
+                }
+                turned++;
+                TopKCollector plain = HashSearch.topK(store, hasher.getPHash(variant).bits(), 1);
+                if (plain.count() > 0 && store.name(plain.id(0)).equals(name)) {
+                    plainFound++;
+                }
+                TopKCollector any = HashSearch.topKAny(store, bits(hasher.getOrientedPHashes(variant)), 1);
+                if (any.count() > 0 && store.name(any.id(0)).equals(name)) {
+                    anyFound++;
+                }
+            }
+        }
+        System.out.println("images: " + checked + "  records: " + store.size()
+                + "  kernel: " + HammingKernel.get().name());
+        for (int o = 0; o < all.length; o++) {
+            System.out.println(String.format("%-10s derived vs re-hashed: mean %.2f bits, max %d",
+                    all[o], checked == 0 ? 0.0 : bitsOff[o] / (double) checked, worst[o]));
+        }
+        System.out.println("turned images found as top-1: plain " + plainFound + "/" + turned
+                + "  any orientation " + anyFound + "/" + turned);
+
+        // scalar and SIMD kernels must agree
+        Random rnd = new Random(534);
+        int queries = 200;
+        long[][] q = new long[queries][all.length];
+        for (int i = 0; i < queries; i++) {
+            for (int o = 0; o < all.length; o++) {
+                q[i][o] = store.hash(rnd.nextInt(store.size())) ^ (1L << rnd.nextInt(store.hashLength()));
+            }
+        }
+        long[] hashes = ((ArrayHashStore) store).hashArray();
+        HammingKernel vector = HammingKernel.Kernels.vector();
+        if (vector != null) {
+            HammingKernel scalar = HammingKernel.Kernels.select("scalar");
+            int mismatch = 0;
+            for (int i = 0; i < queries; i++) {
+                TopKCollector a = new TopKCollector(12);
+                scalar.topKAny(hashes, 0, store.size(), 0, q[i], a);
+                a.finish();
+                TopKCollector b = new TopKCollector(12);
+                vector.topKAny(hashes, 0, store.size(), 0, q[i], b);
+                b.finish();
+                for (int r = 0; r < Math.max(a.count(), b.count()); r++) {
+                    if (a.count() != b.count() || a.id(r) != b.id(r)) {
+                        mismatch++;
+                        break;
+                    }
+                }
+            }
+            System.out.println("scalar vs vector topKAny: mismatched queries " + mismatch + "/" + queries);
+        }
+
+        // two passes, the first one only warms up the JIT
+        long eight = 0, once = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                for (int o = 0; o < all.length; o++) {
+                    HashSearch.topK(store, q[i][o], 12);
+                }
+            }
+            eight = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                HashSearch.topKAny(store, q[i], 12);
+            }
+            once = System.nanoTime() - start;
+        }
+        System.out.println("8 orientations, top-12: 8 scans " + micros(eight, queries)
+                + " us/query  one topKAny scan " + micros(once, queries) + " us/query");
+    }
+
+    static long[] bits(PHash[] hashes) {
+        long[] bits = new long[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            bits[i] = hashes[i].bits();
+        }
+        return bits;
+    }
+
+    private static String micros(long nanos, int queries) {
+        return String.format("%.1f", nanos / 1000.0 / queries);
+    }
+}
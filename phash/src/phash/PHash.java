@@ -0,0 +1,180 @@
+package phash;
+
+import java.util.Arrays;
+
+/*
+* function: a perceptual hash packed into a long.
+* The hash bits are stored in the low `length` bits, first bit of the
+* bit string (as written in the hashtxt files) in the highest of them, so
+* "101" is 0b101. The Hamming distance is one XOR plus one popcount.
+*
+* Hashes longer than 64 bits (see HashConfig) span several words: the bit
+* string is cut into 64-bit pieces, each packed as above, so only the last
+* word is partly used. Such a hash has no bits(), use word(w).
+*/
+public final class PHash {
+
+    // longest hash that fits in one long, i.e. has bits()
+    public static final int MAX_LENGTH = 64;
+
+    private final long[] words;
+    private final int length;
+
+    public PHash(long bits, int length) {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("hash length must be in 0..64: " + length);
+        }
+        if (length < MAX_LENGTH && (bits >>> length) != 0) {
+            throw new IllegalArgumentException(
+                    "bits set above length " + length + ": " + Long.toHexString(bits));
+        }
+        this.words = new long[] { bits };
+        this.length = length;
+    }
+
+    /**
+     * @param words
+     *            words(length) words, packed as described above
+     * @param length
+     *            number of bits
+     */
+    public PHash(long[] words, int length) {
+        if (length < 0 || words.length != words(length)) {
+            throw new IllegalArgumentException(length + " bits need " + words(length)
+                    + " words, got " + words.length);
+        }
+        int tail = length - 64 * (words.length - 1);
+        if (tail < 64 && (words[words.length - 1] >>> tail) != 0) {
+            throw new IllegalArgumentException("bits set above length " + length);
+        }
+        this.words = words.clone();
+        this.length = length;
+    }
+
+    /**
+     * @return number of longs a hash of length bits is packed into
+     */
+    public static int words(int length) {
+        return Math.max(1, (length + 63) >>> 6);
+    }
+
+    /**
+     * @return the packed hash; only for hashes of up to 64 bits
+     */
+    public long bits() {
+        if (this.length > MAX_LENGTH) {
+            throw new IllegalStateException(this.length
+                    + "-bit hash spans " + this.words.length + " words, use word(w)");
+        }
+        return this.words[0];
+    }
+
+    public int words() {
+        return this.words.length;
+    }
+
+    public long word(int w) {
+        return this.words[w];
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    public int distance(PHash other) {
+        if (other.length != this.length) {
+            throw new IllegalArgumentException("cannot compare a " + this.length
+                    + "-bit hash with a " + other.length + "-bit hash");
+        }
+        int d = 0;
+        for (int w = 0; w < this.words.length; w++) {
+            d += distance(this.words[w], other.words[w]);
+        }
+        return d;
+    }
+
+    public static int distance(long h1, long h2) {
+        return Long.bitCount(h1 ^ h2);
+    }
+
+    /**
+     * Parses the '0'/'1' text format of the hashtxt files, any length.
+     *
+     * @param s
+     * @return PHash
+     */
+    public static PHash fromBitString(CharSequence s) {
+        int n = s.length();
+        if (n <= MAX_LENGTH) {
+            return new PHash(parseBits(s), n);
+        }
+        long[] words = new long[words(n)];
+        for (int w = 0; w < words.length; w++) {
+            words[w] = parseBits(s.subSequence(64 * w, Math.min(n, 64 * (w + 1))));
+        }
+        return new PHash(words, n);
+    }
+
+    /**
+     * Same as fromBitString(s).bits() without allocating the PHash.
+     *
+     * @param s
+     * @return long
+     */
+    public static long parseBits(CharSequence s) {
+        int n = s.length();
+        if (n > MAX_LENGTH) {
+            throw new IllegalArgumentException("hash longer than 64 bits: " + s);
+        }
+        long bits = 0;
+        for (int k = 0; k < n; k++) {
+            char ch = s.charAt(k);
+            if (ch == '1') {
+                bits = (bits << 1) | 1L;
+            } else if (ch == '0') {
+                bits = bits << 1;
+            } else {
+                throw new IllegalArgumentException("not a bit string: " + s);
+            }
+        }
+        return bits;
+    }
+
+    public String toBitString() {
+        if (this.words.length == 1) {
+            return toBitString(this.words[0], this.length);
+        }
+        StringBuilder sb = new StringBuilder(this.length);
+        for (int w = 0; w < this.words.length; w++) {
+            sb.append(toBitString(this.words[w], Math.min(64, this.length - 64 * w)));
+        }
+        return sb.toString();
+    }
+
+    public static String toBitString(long bits, int length) {
+        char[] out = new char[length];
+        for (int k = 0; k < length; k++) {
+            out[k] = ((bits >>> (length - 1 - k)) & 1L) != 0 ? '1' : '0';
+        }
+        return new String(out);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PHash)) {
+            return false;
+        }
+        PHash other = (PHash) o;
+        return this.length == other.length && Arrays.equals(this.words, other.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(this.words) * 31 + this.length;
+    }
+
+    @Override
+    public String toString() {
+        return this.toBitString();
+    }
+}
@@ -0,0 +1,59 @@
+package phash;
+
+/*
+* function: the original O(N^4) DCT, kept as the reference mode.
+* It calls Math.cos twice per inner iteration, so it is far too slow for
+* indexing; use it only to check other engines against.
+*/
+public class ReferenceDct implements DctEngine {
+
+    private int size;
+
+    public ReferenceDct(int size) {
+        this.size = size;
+        this.initCoefficients();
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    // DCT function stolen from http://stackoverflow.com/questions/4240490/problems-with-dct-and-idct-algorithm-in-java
+
+    private double[] c;
+
+    private void initCoefficients() {
+        this.c = new double[this.size];
+
+        for (int i = 1; i < this.size; i++) {
+            this.c[i] = 1;
+        }
+        this.c[0] = 1 / Math.sqrt(2.0);
+    }
+
+    public double[][] applyDCT(double[][] f) {
+        double[][] F = new double[this.size][this.size];
+        this.applyDCT(f, F, null);
+        return F;
+    }
+
+    public void applyDCT(double[][] f, double[][] F, double[][] work) {
+        int N = this.size;
+
+        for (int u = 0; u < N; u++) {
+            for (int v = 0; v < N; v++) {
+                double sum = 0.0;
+                for (int i = 0; i < N; i++) {
+                    for (int j = 0; j < N; j++) {
+                        sum += Math.cos(((2 * i + 1) / (2.0 * N)) * u * Math.PI)
+                                * Math.cos(
+                                        ((2 * j + 1) / (2.0 * N)) * v * Math.PI)
+                                * (f[i][j]);
+                    }
+                }
+                sum *= ((this.c[u] * this.c[v]) / 4.0);
+                F[u][v] = sum;
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package phash;
+
+/*
+* function: the portable HammingKernel, one XOR + popcount per record.
+* HotSpot turns Long.bitCount into a single POPCNT where the CPU has it.
+*/
+public class ScalarHammingKernel implements HammingKernel {
+
+    public String name() {
+        return "scalar";
+    }
+
+    public void topK(long[] hashes, int off, int len, int firstId, long query,
+            TopKCollector top) {
+        int delta = firstId - off;
+        for (int i = off; i < off + len; i++) {
+            top.offer(Long.bitCount(query ^ hashes[i]), i + delta);
+        }
+    }
+
+    public void topKAny(long[] hashes, int off, int len, int firstId, long[] queries,
+            TopKCollector top) {
+        int delta = firstId - off;
+        for (int i = off; i < off + len; i++) {
+            top.offer(nearest(hashes[i], queries), i + delta);
+        }
+    }
+
+    static int nearest(long hash, long[] queries) {
+        int d = Long.bitCount(queries[0] ^ hash);
+        for (int j = 1; j < queries.length; j++) {
+            d = Math.min(d, Long.bitCount(queries[j] ^ hash));
+        }
+        return d;
+    }
+
+    public void within(long[] hashes, int off, int len, int firstId, long query,
+            int maxDistance, MultiIndexHash.HitVisitor visitor) {
+        int delta = firstId - off;
+        for (int i = off; i < off + len; i++) {
+            int d = Long.bitCount(query ^ hashes[i]);
+            if (d <= maxDistance) {
+                visitor.hit(i + delta, d);
+            }
+        }
+    }
+}
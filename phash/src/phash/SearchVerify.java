@@ -0,0 +1,440 @@
+package phash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/*
+* function: checks the search structures against the brute-force scan and
+* times both:
+*   sharded  ShardedIndex (parallel, optionally some shards) vs one flat scan
+*   cascade  an experiment: a 16-bit prefix prefilter with exact re-rank
+*            (Cascade below), how much it prunes and what that costs
+*   mih      MultiIndexHash radius recall and top-K vs brute force
+*   offheap  OffHeapHashStore vs ArrayHashStore: heap use, fill time, scan
+* Queries are catalogue hashes with a few random bit flips, like re-encoded
+* uploads. Every timed part runs twice; the first run only warms up the JIT.
+*
+* usage: SearchVerify <hashtxt dir> sharded [queries] [k] [shard,shard,...]
+*        SearchVerify <hashtxt dir or .phx> cascade [queries] [k] [maxDistance]
+*        SearchVerify <hashtxt dir or .phx> mih [queries] [radius] [k]
+*        SearchVerify <hashtxt dir or .phx> offheap [records]
+*/
+public class SearchVerify {
+
+    // one timed part of a check, see time()
+    private interface Part {
+        void run();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: SearchVerify <hashtxt dir> sharded [queries] [k] [shard,shard,...]");
+            System.out.println("       SearchVerify <hashtxt dir or .phx> cascade [queries] [k] [maxDistance]");
+            System.out.println("       SearchVerify <hashtxt dir or .phx> mih [queries] [radius] [k]");
+            System.out.println("       SearchVerify <hashtxt dir or .phx> offheap [records]");
+            return;
+        }
+        File file = new File(args[0]);
+        String[] rest = Arrays.copyOfRange(args, 2, args.length);
+        if ("sharded".equals(args[1])) {
+            sharded(file, rest);
+        } else if ("cascade".equals(args[1])) {
+            cascade(file, rest);
+        } else if ("mih".equals(args[1])) {
+            mih(file, rest);
+        } else if ("offheap".equals(args[1])) {
+            offHeap(file, rest);
+        } else {
+            System.out.println("unknown check: " + args[1]);
+        }
+    }
+
+    static void sharded(File dir, String[] args) throws IOException {
+        long start = System.nanoTime();
+        final ShardedIndex index = ShardedIndex.byFile(dir);
+        long load = System.nanoTime() - start;
+        final int queries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int k = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+        final List<String> only = args.length > 2 ? Arrays.asList(args[2].split(",")) : null;
+
+        // the same records as one flat store, in global id order
+        final ArrayHashStore flat = ArrayHashStore.copyOf(index);
+        final boolean[] searched = new boolean[flat.size()];
+        Set<String> names = only != null ? new HashSet<String>(only) : null;
+        for (int id = 0; id < searched.length; id++) {
+            searched[id] = names == null || names.contains(index.shardName(index.shardOf(id)));
+        }
+        final long[] q = queries(flat, queries);
+
+        // the flat scan has to look at every record and drop the unselected ones
+        final TopKCollector[] expected = new TopKCollector[queries];
+        long flatNanos = time(new Part() {
+            public void run() {
+                for (int i = 0; i < queries; i++) {
+                    TopKCollector top = new TopKCollector(k);
+                    for (int id = 0; id < flat.size(); id++) {
+                        if (searched[id]) {
+                            top.offer(PHash.distance(q[i], flat.hash(id)), id);
+                        }
+                    }
+                    top.finish();
+                    expected[i] = top;
+                }
+            }
+        });
+        final int[] mismatch = new int[1];
+        long shardedNanos = time(new Part() {
+            public void run() {
+                mismatch[0] = 0;
+                for (int i = 0; i < queries; i++) {
+                    if (!same(index.topK(q[i], k, only), expected[i])) {
+                        mismatch[0]++;
+                    }
+                }
+            }
+        });
+
+        System.out.println("records: " + index.size() + "  shards: " + index.shards()
+                + (only != null ? "  searched: " + only : "") + "  parallelism: "
+                + index.parallelism() + "  load: " + load / 1000000 + " ms");
+        System.out.println("top-" + k + ": mismatched queries " + mismatch[0] + "/" + queries
+                + "  flat scan " + micros(flatNanos, queries) + " us/query  sharded "
+                + micros(shardedNanos, queries) + " us/query");
+    }
+
+    static void cascade(File file, String[] args) throws IOException {
+        final HashStore store = ArrayHashStore.copyOf(HashIndexFile.openStore(file));
+        final int queries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int k = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+        final int maxDistance = args.length > 2 ? Integer.parseInt(args[2]) : store.hashLength();
+
+        long start = System.nanoTime();
+        final Cascade cascade = new Cascade(store);
+        long build = System.nanoTime() - start;
+        final long[] q = queries(store, queries);
+
+        final TopKCollector[] expected = new TopKCollector[queries];
+        long brute = time(new Part() {
+            public void run() {
+                for (int i = 0; i < queries; i++) {
+                    TopKCollector top = new TopKCollector(k);
+                    for (int id = 0; id < store.size(); id++) {
+                        int d = PHash.distance(q[i], store.hash(id));
+                        if (d <= maxDistance) {
+                            top.offer(d, id);
+                        }
+                    }
+                    top.finish();
+                    expected[i] = top;
+                }
+            }
+        });
+        final int[] mismatch = new int[1];
+        long cascaded = time(new Part() {
+            public void run() {
+                mismatch[0] = 0;
+                cascade.resetStats();
+                for (int i = 0; i < queries; i++) {
+                    if (!same(cascade.topK(q[i], k, maxDistance), expected[i])) {
+                        mismatch[0]++;
+                    }
+                }
+            }
+        });
+
+        System.out.println("records: " + store.size() + "  bits: " + store.hashLength()
+                + "  prefix: " + cascade.prefixBits
+                + "  build: " + build / 1000000 + " ms");
+        System.out.println("top-" + k + " within " + maxDistance + ": mismatched queries "
+                + mismatch[0] + "/" + queries + "  brute " + micros(brute, queries)
+                + " us/query  cascade " + micros(cascaded, queries) + " us/query");
+        System.out.println(cascade.stats());
+    }
+
+    /*
+     * Two-stage top-K. Stage one reads only the first PREFIX_BITS bits of
+     * every hash (a char per record): the prefix distance is a lower bound
+     * of the full distance, so records whose prefix is beyond maxDistance
+     * are pruned and the rest are bucketed by prefix distance. Stage two
+     * computes exact distances, nearest bucket first, and stops once the
+     * K-th best is below the next bucket. Exact, but on the catalogue the
+     * bucketing costs more than the HammingKernel scan it would save, so
+     * queries use HashSearch / ShardedIndex; kept here for its counters.
+     */
+    static final class Cascade {
+        static final int PREFIX_BITS = 16;
+
+        private final HashStore store;
+        final int prefixBits;
+        private final int shift;
+        private final char[] prefix;
+        private final byte[] distance;
+        private final int[] order;
+
+        private long queries;
+        private long prefixPruned; // prefix already beyond maxDistance
+        private long terminated; // skipped by the early stop
+        private long exact; // exact distances computed
+        private long exactPruned; // exact distance computed, record not kept
+
+        Cascade(HashStore store) {
+            if (store.words() != 1) {
+                throw new IllegalArgumentException("cascaded search needs hashes of up to 64 bits");
+            }
+            this.store = store;
+            this.prefixBits = Math.min(PREFIX_BITS, store.hashLength());
+            this.shift = store.hashLength() - this.prefixBits;
+            int n = store.size();
+            this.prefix = new char[n];
+            for (int i = 0; i < n; i++) {
+                this.prefix[i] = (char) (store.hash(i) >>> this.shift);
+            }
+            this.distance = new byte[n];
+            this.order = new int[n];
+        }
+
+        TopKCollector topK(long query, int k, int maxDistance) {
+            TopKCollector top = new TopKCollector(k);
+            int n = this.store.size();
+            int bound = Math.min(maxDistance, this.prefixBits);
+            char q = (char) (query >>> this.shift);
+
+            // stage one: counting sort of the surviving ids by prefix distance
+            int[] start = new int[this.prefixBits + 2];
+            for (int i = 0; i < n; i++) {
+                int p = Integer.bitCount(q ^ this.prefix[i]);
+                this.distance[i] = (byte) p;
+                start[p + 1]++;
+            }
+            int survivors = 0;
+            for (int p = 0; p <= bound; p++) {
+                survivors += start[p + 1];
+                start[p + 1] = survivors;
+            }
+            int[] next = Arrays.copyOf(start, bound + 1);
+            for (int i = 0; i < n; i++) {
+                int p = this.distance[i];
+                if (p <= bound) {
+                    this.order[next[p]++] = i;
+                }
+            }
+
+            // stage two: exact distances, nearest prefix first
+            int a = 0;
+            for (int p = 0; p <= bound; p++) {
+                // a tie with a smaller id can still get in, so only stop above it
+                if (p > top.worstDistance()) {
+                    break;
+                }
+                for (; a < start[p + 1]; a++) {
+                    int id = this.order[a];
+                    int d = PHash.distance(query, this.store.hash(id));
+                    this.exact++;
+                    if (d > maxDistance || !top.offer(d, id)) {
+                        this.exactPruned++;
+                    }
+                }
+            }
+            top.finish();
+            this.queries++;
+            this.prefixPruned += n - survivors;
+            this.terminated += survivors - a;
+            return top;
+        }
+
+        void resetStats() {
+            this.queries = 0;
+            this.prefixPruned = 0;
+            this.terminated = 0;
+            this.exact = 0;
+            this.exactPruned = 0;
+        }
+
+        String stats() {
+            return "queries " + this.queries + ", records " + this.queries * this.store.size()
+                    + ", prefix pruned " + this.prefixPruned + ", terminated " + this.terminated
+                    + ", exact " + this.exact + ", exact pruned " + this.exactPruned;
+        }
+    }
+
+    static void mih(File file, String[] args) throws IOException {
+        final HashStore store = ArrayHashStore.copyOf(HashIndexFile.openStore(file));
+        final int queries = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int r = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final int k = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+
+        long start = System.nanoTime();
+        final MultiIndexHash mih = new MultiIndexHash(store);
+        long build = System.nanoTime() - start;
+        final long[] q = queries(store, queries);
+
+        final long[] expected = new long[1];
+        long bruteRadius = time(new Part() {
+            public void run() {
+                expected[0] = 0;
+                for (int i = 0; i < queries; i++) {
+                    for (int id = 0; id < store.size(); id++) {
+                        if (PHash.distance(q[i], store.hash(id)) <= r) {
+                            expected[0]++;
+                        }
+                    }
+                }
+            }
+        });
+        final long[] found = new long[1];
+        long mihRadius = time(new Part() {
+            public void run() {
+                found[0] = 0;
+                for (int i = 0; i < queries; i++) {
+                    found[0] += mih.count(q[i], r);
+                }
+            }
+        });
+        final TopKCollector[] brute = new TopKCollector[queries];
+        long bruteTopK = time(new Part() {
+            public void run() {
+                for (int i = 0; i < queries; i++) {
+                    brute[i] = HashSearch.topK(store, q[i], k);
+                }
+            }
+        });
+        final int[] mismatch = new int[1];
+        long mihTopK = time(new Part() {
+            public void run() {
+                mismatch[0] = 0;
+                for (int i = 0; i < queries; i++) {
+                    if (!same(mih.topK(q[i], k), brute[i])) {
+                        mismatch[0]++;
+                    }
+                }
+            }
+        });
+
+        System.out.println("records: " + store.size() + "  bits: " + store.hashLength()
+                + "  tables: " + mih.tables() + "  build: " + build / 1000000 + " ms");
+        System.out.println("radius <= " + r + ": recall " + found[0] + "/" + expected[0]
+                + "  brute " + micros(bruteRadius, queries) + " us/query  mih "
+                + micros(mihRadius, queries) + " us/query");
+        System.out.println("top-" + k + ": mismatched queries " + mismatch[0] + "/" + queries
+                + "  brute " + micros(bruteTopK, queries) + " us/query  mih "
+                + micros(mihTopK, queries) + " us/query");
+    }
+
+    static void offHeap(File file, String[] args) throws IOException {
+        HashStore src = HashIndexFile.openStore(file);
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : src.size();
+        if (src.size() == 0 || src.words() != 1) {
+            System.out.println("needs a non-empty catalogue of hashes up to 64 bits");
+            return;
+        }
+
+        // the catalogue over and over, each copy with its own names
+        long heap0 = usedHeap();
+        long start = System.nanoTime();
+        final OffHeapHashStore offHeap = new OffHeapHashStore(src.hashLength());
+        for (int i = 0; i < records; i++) {
+            offHeap.add(src.name(i % src.size()) + "#" + i / src.size(), src.hash(i % src.size()));
+        }
+        long fillOffHeap = System.nanoTime() - start;
+        long heapOffHeap = usedHeap() - heap0;
+
+        start = System.nanoTime();
+        final ArrayHashStore heap = new ArrayHashStore(src.hashLength(), records);
+        for (int i = 0; i < records; i++) {
+            heap.add(src.name(i % src.size()) + "#" + i / src.size(), src.hash(i % src.size()));
+        }
+        long fillHeap = System.nanoTime() - start;
+        long heapHeap = usedHeap() - heap0 - heapOffHeap;
+
+        int mismatch = 0;
+        for (int i = 0; i < records; i++) {
+            if (heap.hash(i) != offHeap.hash(i) || !heap.name(i).equals(offHeap.name(i))) {
+                mismatch++;
+            }
+        }
+
+        final int queries = 20;
+        final long[] q = queries(src, queries);
+        long scanHeap = time(new Part() {
+            public void run() {
+                for (int i = 0; i < queries; i++) {
+                    HashSearch.topK(heap, q[i], 12);
+                }
+            }
+        });
+        long scanOffHeap = time(new Part() {
+            public void run() {
+                for (int i = 0; i < queries; i++) {
+                    TopKCollector top = HashSearch.topK(offHeap, q[i], 12);
+                    for (int a = 0; a < top.count(); a++) {
+                        offHeap.name(top.id(a)); // the only names ever decoded
+                    }
+                }
+            }
+        });
+
+        System.out.println("records: " + records + "  mismatched: " + mismatch);
+        System.out.println("heap store:     " + mb(heapHeap) + " MB heap, filled in "
+                + fillHeap / 1000000 + " ms, scan " + micros(scanHeap, queries) + " us/query");
+        System.out.println("off-heap store: " + mb(heapOffHeap) + " MB heap, "
+                + mb(offHeap.offHeapBytes()) + " MB direct, filled in " + fillOffHeap / 1000000
+                + " ms, scan " + micros(scanOffHeap, queries) + " us/query");
+    }
+
+    // catalogue hashes with 0..5 random bit flips
+    static long[] queries(HashStore store, int n) {
+        Random rnd = new Random(534);
+        long[] q = new long[n];
+        for (int i = 0; i < n; i++) {
+            long h = store.hash(rnd.nextInt(store.size()));
+            int flips = rnd.nextInt(6);
+            for (int f = 0; f < flips; f++) {
+                h ^= 1L << rnd.nextInt(store.hashLength());
+            }
+            q[i] = h;
+        }
+        return q;
+    }
+
+    // runs part twice and returns the nanos of the second run
+    private static long time(Part part) {
+        part.run();
+        long start = System.nanoTime();
+        part.run();
+        return System.nanoTime() - start;
+    }
+
+    // same ids in the same order
+    private static boolean same(TopKCollector a, TopKCollector b) {
+        if (a.count() != b.count()) {
+            return false;
+        }
+        for (int r = 0; r < a.count(); r++) {
+            if (a.id(r) != b.id(r)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static long mb(long bytes) {
+        return bytes >> 20;
+    }
+
+    private static String micros(long nanos, int queries) {
+        return String.format("%.1f", nanos / 1000.0 / queries);
+    }
+}
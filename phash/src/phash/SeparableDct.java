@@ -0,0 +1,125 @@
+package phash;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+* function: row-column separable DCT with a precomputed cosine table.
+* The 2-D DCT is done as a 1-D DCT over the columns followed by a 1-D DCT
+* over the rows, so the cost drops from N^4 to about 2 * N^3 multiply-adds
+* and no Math.cos is called after the table for a size has been built.
+*
+* With limit < size only the top-left limit x limit coefficients are
+* computed (the rest of the output stays 0). For the hash (size 32, limit 8)
+* this is 8*32*32 + 8*8*32 multiply-adds instead of 32^4 cos pairs.
+*/
+public class SeparableDct implements DctEngine {
+
+    // cosine tables are shared by every engine of the same size
+    private static final ConcurrentHashMap<Integer, double[][]> TABLES = new ConcurrentHashMap<Integer, double[][]>();
+
+    private int size;
+    private int limit;
+    private double[][] cos;
+    private double[] c;
+
+    public SeparableDct(int size) {
+        this(size, size);
+    }
+
+    /**
+     *
+     * @param size
+     *            N of the N x N input block
+     * @param limit
+     *            only F[u][v] with u, v < limit are computed
+     */
+    public SeparableDct(int size, int limit) {
+        if (limit < 1 || limit > size) {
+            throw new IllegalArgumentException(
+                    "limit must be in 1.." + size + ": " + limit);
+        }
+        this.size = size;
+        this.limit = limit;
+        this.cos = cosTable(size);
+
+        this.c = new double[size];
+        for (int i = 1; i < size; i++) {
+            this.c[i] = 1;
+        }
+        this.c[0] = 1 / Math.sqrt(2.0);
+    }
+
+    /**
+     * cos[u][i] = cos((2i+1)/(2N) * u * PI), written exactly like the
+     * reference so both engines multiply by the same doubles.
+     */
+    static double[][] cosTable(int N) {
+        double[][] table = TABLES.get(N);
+        if (table == null) {
+            table = new double[N][N];
+            for (int u = 0; u < N; u++) {
+                for (int i = 0; i < N; i++) {
+                    table[u][i] = Math.cos(((2 * i + 1) / (2.0 * N)) * u * Math.PI);
+                }
+            }
+            double[][] prev = TABLES.putIfAbsent(N, table);
+            if (prev != null) {
+                table = prev;
+            }
+        }
+        return table;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int limit() {
+        return this.limit;
+    }
+
+    public double[][] applyDCT(double[][] f) {
+        double[][] F = new double[this.size][this.size];
+        this.applyDCT(f, F, new double[this.limit][this.size]);
+        return F;
+    }
+
+    /**
+     * @param work
+     *            at least limit x N; overwritten
+     */
+    public void applyDCT(double[][] f, double[][] F, double[][] work) {
+        int N = this.size;
+        int L = this.limit;
+        double[][] cos = this.cos;
+
+        // pass 1: t[u][j] = sum(i) cos[u][i] * f[i][j]
+        double[][] t = work;
+        for (int u = 0; u < L; u++) {
+            double[] cu = cos[u];
+            double[] tu = t[u];
+            Arrays.fill(tu, 0, N, 0.0);
+            for (int i = 0; i < N; i++) {
+                double ci = cu[i];
+                double[] fi = f[i];
+                for (int j = 0; j < N; j++) {
+                    tu[j] += ci * fi[j];
+                }
+            }
+        }
+
+        // pass 2: F[u][v] = c(u) * c(v) / 4 * sum(j) cos[v][j] * t[u][j]
+        for (int u = 0; u < L; u++) {
+            double[] tu = t[u];
+            for (int v = 0; v < L; v++) {
+                double[] cv = cos[v];
+                double sum = 0.0;
+                for (int j = 0; j < N; j++) {
+                    sum += cv[j] * tu[j];
+                }
+                F[u][v] = sum * ((this.c[u] * this.c[v]) / 4.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package phash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+* function: a catalogue split into named shards that are searched in
+* parallel on a ForkJoinPool (scatter-gather).
+*
+* Shards are either the per-landmark hashtxt files (byFile: eiffel,
+* louvre, notredame, ...) or buckets of the first bits of the hash
+* (byHashRange). A query forks one task per shard, and big shards are
+* split further by record range, so a single-landmark query still uses
+* every core; each task scans with the HammingKernel into its own top-K
+* and the partial results are merged on the way back. Shards are scanned
+* where they are: an ArrayHashStore in place, any other store (e.g. an
+* OffHeapHashStore) copied block by block into a cache-sized buffer.
+*
+* Seen as a HashStore the shards are concatenated in shard order, and
+* result ids are such global ids, so a query over all shards returns
+* exactly what HashSearch.topK returns over the same store. A query can
+* be limited to some shards; the others are not touched at all.
+* topKAny does the same for several query hashes at once (the orientations
+* of an image), each record ranked by its nearest query.
+*
+* check: SearchVerify <hashtxt dir> sharded [queries] [k] [shard,shard,...]
+*        compares results and latency against the single-threaded scan
+*/
+public class ShardedIndex implements HashStore {
+
+    // records per leaf task; below this forking costs more than it saves
+    static final int MIN_SPLIT = 1 << 14;
+
+    private final String[] names;
+    private final HashStore[] shards;
+    private final int[] offsets; // global id of the first record of shard s, size() last
+    private final Map<String, Integer> byName = new HashMap<String, Integer>();
+    private final int hashLength;
+    private final int prefixBits; // byHashRange: shard s holds hashes whose first bits are s
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * @param names
+     *            unique shard names
+     * @param shards
+     *            stores of the same hash length, up to 64 bits, kept as
+     *            they are; load them all before the first query
+     */
+    public ShardedIndex(String[] names, HashStore[] shards) {
+        this(names, shards, 0);
+    }
+
+    private ShardedIndex(String[] names, HashStore[] shards, int prefixBits) {
+        if (names.length != shards.length || shards.length == 0) {
+            throw new IllegalArgumentException("need one name per shard and at least one shard");
+        }
+        this.names = names.clone();
+        this.shards = shards.clone();
+        this.offsets = new int[shards.length + 1];
+        this.hashLength = shards[0].hashLength();
+        this.prefixBits = prefixBits;
+        for (int s = 0; s < shards.length; s++) {
+            if (shards[s].hashLength() != this.hashLength) {
+                throw new IllegalArgumentException("shard " + names[s] + " holds "
+                        + shards[s].hashLength() + "-bit hashes, not " + this.hashLength);
+            }
+            if (shards[s].words() != 1) {
+                throw new IllegalArgumentException("sharded search needs hashes of up to "
+                        + PHash.MAX_LENGTH + " bits");
+            }
+            if (this.byName.put(names[s], s) != null) {
+                throw new IllegalArgumentException("duplicate shard name: " + names[s]);
+            }
+            long end = (long) this.offsets[s] + shards[s].size();
+            if (end > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("more than 2^31 records");
+            }
+            this.offsets[s + 1] = (int) end;
+        }
+    }
+
+    /**
+     * One shard per .txt file of a hashtxt directory, named after the file
+     * (eiffel.txt -> eiffel), off the heap with -Dphash.store=offheap.
+     * Empty files are skipped.
+     *
+     * @param dir
+     * @return ShardedIndex
+     * @throws IOException
+     */
+    public static ShardedIndex byFile(File dir) throws IOException {
+        List<String> names = new ArrayList<String>();
+        List<HashStore> shards = new ArrayList<HashStore>();
+        for (File f : HashTxt.listFiles(dir)) {
+            HashStore store = HashTxt.read(f, null, OffHeapHashStore.requested());
+            if (store != null) {
+                String name = f.getName();
+                names.add(name.substring(0, name.length() - ".txt".length()));
+                shards.add(store);
+            }
+        }
+        if (shards.isEmpty()) {
+            throw new IOException(dir + ": no hashes");
+        }
+        return new ShardedIndex(names.toArray(new String[0]),
+                shards.toArray(new HashStore[0]));
+    }
+
+    /**
+     * 2^bits shards by the first bits of the hash (the first characters of
+     * the bit string), named by them ("0110"). Records keep their relative
+     * order within a shard; global ids are not those of store.
+     *
+     * @param store
+     * @param bits
+     *            1..16
+     * @return ShardedIndex
+     */
+    public static ShardedIndex byHashRange(HashStore store, int bits) {
+        if (bits < 1 || bits > 16 || bits > store.hashLength()) {
+            throw new IllegalArgumentException("bits must be in 1..min(16, hash length): " + bits);
+        }
+        int shift = store.hashLength() - bits;
+        ArrayHashStore[] shards = new ArrayHashStore[1 << bits];
+        String[] names = new String[shards.length];
+        for (int s = 0; s < shards.length; s++) {
+            shards[s] = new ArrayHashStore(store.hashLength(), store.size() >> bits);
+            shards[s].setConfig(store.config());
+            names[s] = PHash.toBitString(s, bits);
+        }
+        for (int i = 0; i < store.size(); i++) {
+            long h = store.hash(i);
+            shards[(int) (h >>> shift)].add(store.name(i), h);
+        }
+        return new ShardedIndex(names, shards, bits);
+    }
+
+    int parallelism() {
+        return this.pool.getParallelism();
+    }
+
+    /**
+     * Runs queries on pool instead of the common pool.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public int shards() {
+        return this.names.length;
+    }
+
+    public String shardName(int s) {
+        return this.names[s];
+    }
+
+    public HashStore shard(int s) {
+        return this.shards[s];
+    }
+
+    /**
+     * @return the shard holding global record id
+     */
+    public int shardOf(int id) {
+        if (id < 0 || id >= this.size()) {
+            throw new IndexOutOfBoundsException(id + " >= " + this.size());
+        }
+        int s = Arrays.binarySearch(this.offsets, id);
+        if (s < 0) {
+            return -s - 2;
+        }
+        while (this.offsets[s + 1] == id) {
+            s++; // skip empty shards starting at id
+        }
+        return s;
+    }
+
+    public int size() {
+        return this.offsets[this.shards.length];
+    }
+
+    public int hashLength() {
+        return this.hashLength;
+    }
+
+    public long hash(int i) {
+        int s = this.shardOf(i);
+        return this.shards[s].hash(i - this.offsets[s]);
+    }
+
+    public String name(int i) {
+        int s = this.shardOf(i);
+        return this.shards[s].name(i - this.offsets[s]);
+    }
+
+    @Override
+    public HashConfig config() {
+        HashConfig config = this.shards[0].config();
+        for (HashStore shard : this.shards) {
+            if (config == null || !config.equals(shard.config())) {
+                return null;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @param query
+     *            PHash bits of the query image
+     * @param k
+     * @return the k nearest records over all shards, global ids, finished
+     */
+    public TopKCollector topK(long query, int k) {
+        return this.topK(query, k, null);
+    }
+
+    /**
+     * @param query
+     * @param k
+     * @param only
+     *            names of the shards to search, null for all
+     * @return the k nearest records of those shards, global ids, finished
+     */
+    public TopKCollector topK(long query, int k, Collection<String> only) {
+        return this.topK(query, k, this.hashLength, only);
+    }
+
+    /**
+     * @param query
+     * @param k
+     * @param maxDistance
+     *            records farther away are not reported; hash-range shards
+     *            whose prefix alone is farther are skipped
+     * @param only
+     *            names of the shards to search, null for all
+     * @return up to k nearest records within maxDistance, global ids,
+     *         finished
+     */
+    public TopKCollector topK(long query, int k, int maxDistance, Collection<String> only) {
+        return this.search(new long[] { query }, k, maxDistance, only);
+    }
+
+    /**
+     * One parallel scan for several query hashes, e.g. the orientations of
+     * ImagePHash.getOrientedPHashes; a record's distance is the one to its
+     * nearest query (HammingKernel.topKAny).
+     *
+     * @param queries
+     *            PHash bits, at least one
+     * @param k
+     * @param only
+     *            names of the shards to search, null for all
+     * @return the k nearest records of those shards, global ids, finished
+     */
+    public TopKCollector topKAny(long[] queries, int k, Collection<String> only) {
+        if (queries.length == 0) {
+            throw new IllegalArgumentException("no query hashes");
+        }
+        return this.search(queries.clone(), k, this.hashLength, only);
+    }
+
+    private TopKCollector search(long[] queries, int k, int maxDistance, Collection<String> only) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be >= 1: " + k);
+        }
+        long start = Metrics.start();
+        // leaves: (shard, from, to) record ranges of the selected shards
+        List<int[]> leaves = new ArrayList<int[]>();
+        for (int s : this.select(only)) {
+            if (this.prefixBits > 0 && this.prefixDistance(queries, s) > maxDistance) {
+                continue;
+            }
+            int n = this.shards[s].size();
+            int parts = Math.max(1, Math.min(n / MIN_SPLIT,
+                    this.pool.getParallelism()));
+            for (int p = 0; p < parts; p++) {
+                leaves.add(new int[] { s, (int) ((long) n * p / parts),
+                        (int) ((long) n * (p + 1) / parts) });
+            }
+        }
+        TopKCollector top = leaves.isEmpty() ? new TopKCollector(k)
+                : this.pool.invoke(new Search(leaves, 0, leaves.size(), queries, k, maxDistance));
+        top.finish();
+        Metrics.stop(Metrics.QUERY, start);
+        return top;
+    }
+
+    // bits the nearest query differs in from the prefix of hash-range shard s
+    private int prefixDistance(long[] queries, int s) {
+        int nearest = Integer.MAX_VALUE;
+        for (long query : queries) {
+            nearest = Math.min(nearest,
+                    Long.bitCount((query >>> (this.hashLength - this.prefixBits)) ^ s));
+        }
+        return nearest;
+    }
+
+    private int[] select(Collection<String> only) {
+        if (only == null) {
+            int[] all = new int[this.shards.length];
+            for (int s = 0; s < all.length; s++) {
+                all[s] = s;
+            }
+            return all;
+        }
+        // shard order, so ties rank as in the unfiltered query
+        boolean[] picked = new boolean[this.shards.length];
+        for (String name : only) {
+            Integer s = this.byName.get(name);
+            if (s == null) {
+                throw new IllegalArgumentException("no shard named " + name);
+            }
+            picked[s] = true;
+        }
+        int[] selected = new int[this.shards.length];
+        int n = 0;
+        for (int s = 0; s < picked.length; s++) {
+            if (picked[s]) {
+                selected[n++] = s;
+            }
+        }
+        return Arrays.copyOf(selected, n);
+    }
+
+    // halves the leaf list until one leaf is left, then scans it
+    private final class Search extends RecursiveTask<TopKCollector> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<int[]> leaves;
+        private final int from;
+        private final int to;
+        private final long[] queries;
+        private final int k;
+        private final int maxDistance;
+
+        Search(List<int[]> leaves, int from, int to, long[] queries, int k, int maxDistance) {
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+            this.queries = queries;
+            this.k = k;
+            this.maxDistance = maxDistance;
+        }
+
+        @Override
+        protected TopKCollector compute() {
+            if (this.to - this.from == 1) {
+                return this.scan(this.leaves.get(this.from));
+            }
+            int mid = (this.from + this.to) >>> 1;
+            Search right = new Search(this.leaves, mid, this.to, this.queries, this.k,
+                    this.maxDistance);
+            right.fork();
+            TopKCollector top = new Search(this.leaves, this.from, mid, this.queries,
+                    this.k, this.maxDistance).compute();
+            top.merge(right.join());
+            return top;
+        }
+
+        private TopKCollector scan(int[] leaf) {
+            HashStore shard = ShardedIndex.this.shards[leaf[0]];
+            int firstId = ShardedIndex.this.offsets[leaf[0]];
+            TopKCollector top = new TopKCollector(this.k);
+            Metrics.scanned(leaf[2] - leaf[1]);
+            if (shard instanceof ArrayHashStore) {
+                this.scan(((ArrayHashStore) shard).hashArray(), leaf[1], leaf[2] - leaf[1],
+                        firstId + leaf[1], top);
+                return top;
+            }
+            long[] block = new long[Math.min(HashSearch.BLOCK, leaf[2] - leaf[1])];
+            for (int from = leaf[1]; from < leaf[2]; from += HashSearch.BLOCK) {
+                int len = Math.min(HashSearch.BLOCK, leaf[2] - from);
+                HashSearch.copyBlock(shard, from, block, len);
+                this.scan(block, 0, len, firstId + from, top);
+            }
+            return top;
+        }
+
+        private void scan(long[] hashes, int off, int len, int firstId, final TopKCollector top) {
+            if (this.queries.length > 1) {
+                HammingKernel.get().topKAny(hashes, off, len, firstId, this.queries, top);
+            } else if (this.maxDistance >= ShardedIndex.this.hashLength) {
+                HammingKernel.get().topK(hashes, off, len, firstId, this.queries[0], top);
+            } else {
+                HammingKernel.get().within(hashes, off, len, firstId, this.queries[0],
+                        this.maxDistance, new MultiIndexHash.HitVisitor() {
+                            public void hit(int id, int distance) {
+                                top.offer(distance, id);
+                            }
+                        });
+            }
+        }
+    }
+}
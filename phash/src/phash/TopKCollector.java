@@ -0,0 +1,149 @@
+package phash;
+
+/*
+* function: keeps the k nearest (distance, record id) pairs seen so far.
+* A bounded max-heap of packed longs (distance << 32 | id): the root is the
+* current k-th best, so a candidate costs one compare unless it beats it,
+* and nothing is allocated per candidate. Ties on distance are ranked by
+* the smaller record id.
+*
+* usage: offer(...) for every candidate, then finish() once and read
+* id(rank) / distance(rank) for rank 0..count()-1, best first.
+* Not thread-safe; use one collector per query and thread.
+*/
+public class TopKCollector {
+
+    private final int k;
+    private final long[] heap;
+    private int size;
+    private boolean finished;
+
+    public TopKCollector(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be >= 1: " + k);
+        }
+        this.k = k;
+        this.heap = new long[k];
+    }
+
+    public int k() {
+        return this.k;
+    }
+
+    public void reset() {
+        this.size = 0;
+        this.finished = false;
+    }
+
+    /**
+     * @param distance
+     *            non-negative distance of the candidate
+     * @param id
+     *            non-negative record id of the candidate
+     * @return true if the candidate is (for now) among the k best
+     */
+    public boolean offer(int distance, int id) {
+        if (this.finished) {
+            throw new IllegalStateException("offer after finish()");
+        }
+        long key = ((long) distance << 32) | (id & 0xffffffffL);
+        if (this.size < this.k) {
+            this.siftUp(this.size++, key);
+            return true;
+        }
+        if (key >= this.heap[0]) {
+            return false;
+        }
+        this.siftDown(0, key, this.size);
+        return true;
+    }
+
+    /**
+     * @return the distance a candidate has to beat (be strictly below, or
+     *         equal with a smaller id) to get in; Integer.MAX_VALUE until k
+     *         candidates were offered
+     */
+    public int worstDistance() {
+        return this.size < this.k ? Integer.MAX_VALUE : (int) (this.heap[0] >>> 32);
+    }
+
+    /**
+     * Offers everything other kept, e.g. to combine the top-Ks of parts of
+     * a store scanned in parallel; finishes other.
+     */
+    public void merge(TopKCollector other) {
+        other.finish();
+        for (int a = 0; a < other.size; a++) {
+            this.offer((int) (other.heap[a] >>> 32), (int) other.heap[a]);
+        }
+    }
+
+    /**
+     * Sorts the kept candidates best first. Call once after the last offer.
+     */
+    public void finish() {
+        if (this.finished) {
+            return;
+        }
+        // in-place heapsort: repeatedly move the max to the end
+        for (int n = this.size - 1; n > 0; n--) {
+            long max = this.heap[0];
+            this.siftDown(0, this.heap[n], n);
+            this.heap[n] = max;
+        }
+        this.finished = true;
+    }
+
+    public int count() {
+        return this.size;
+    }
+
+    public int id(int rank) {
+        this.checkRank(rank);
+        return (int) this.heap[rank];
+    }
+
+    public int distance(int rank) {
+        this.checkRank(rank);
+        return (int) (this.heap[rank] >>> 32);
+    }
+
+    private void checkRank(int rank) {
+        if (!this.finished) {
+            throw new IllegalStateException("call finish() first");
+        }
+        if (rank < 0 || rank >= this.size) {
+            throw new IndexOutOfBoundsException(rank + " >= " + this.size);
+        }
+    }
+
+    private void siftUp(int i, long key) {
+        long[] h = this.heap;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (h[parent] >= key) {
+                break;
+            }
+            h[i] = h[parent];
+            i = parent;
+        }
+        h[i] = key;
+    }
+
+    private void siftDown(int i, long key, int n) {
+        long[] h = this.heap;
+        int half = n >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < n && h[child + 1] > h[child]) {
+                child++;
+            }
+            if (key >= h[child]) {
+                break;
+            }
+            h[i] = h[child];
+            i = child;
+        }
+        h[i] = key;
+    }
+}
@@ -0,0 +1,183 @@
+package phash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+* function: fingerprints a video, given as a directory of extracted frames
+* (e.g. ffmpeg -i in.mp4 -vf fps=5 frames/%06d.jpg), against the index.
+*
+* 1. The frames, in file name order, are hashed in parallel (fast
+*    downscale, see ImagePHash.setDownscaleSamples: not always bit for bit
+*    the hashes of the index). With stride n > 1 only every n-th frame is
+*    hashed first; the frames in between are hashed in a second round only
+*    where the two sampled ends differ by more than maxDistance, i.e. where
+*    the scene changed. A static shot costs one hash per n frames.
+* 2. Temporal dedup: a frame is a keyframe if its hash is more than
+*    maxDistance from the previous keyframe; the rest repeat it.
+* 3. Only the keyframes are queried, in one BatchQuery pass.
+*
+* usage: VideoKeyframes <index .phx or hashtxt dir> <frame dir> <out.csv|out.jsonl>
+*        [maxDistance] [stride] [k] [threads]
+*/
+public class VideoKeyframes {
+
+    public static final int DEFAULT_MAX_DISTANCE = 4;
+
+    private VideoKeyframes() {
+    }
+
+    /**
+     * Hashes frames in parallel, skipping the inside of runs that look
+     * static at the given stride (see above).
+     *
+     * @param stride
+     *            1 hashes every frame
+     * @param errors
+     *            one slot per frame, set where hashing failed
+     * @return hash per frame, null where skipped or failed
+     */
+    public static PHash[] hashFrames(ImagePHash hasher, List<File> frames, int stride,
+            int maxDistance, int threads, String[] errors) throws InterruptedException {
+        if (stride < 1) {
+            throw new IllegalArgumentException("stride must be >= 1: " + stride);
+        }
+        int n = frames.size();
+        PHash[] hashes = new PHash[n];
+        List<Integer> sampled = new ArrayList<Integer>();
+        for (int i = 0; i < n; i += stride) {
+            sampled.add(i);
+        }
+        if (n > 0 && (n - 1) % stride != 0) {
+            sampled.add(n - 1);
+        }
+        hashSome(hasher, frames, sampled, threads, hashes, errors);
+
+        // second round: every frame between two sampled ones that differ
+        List<Integer> gaps = new ArrayList<Integer>();
+        for (int s = 0; s + 1 < sampled.size(); s++) {
+            int a = sampled.get(s);
+            int b = sampled.get(s + 1);
+            if (hashes[a] == null || hashes[b] == null
+                    || hashes[a].distance(hashes[b]) > maxDistance) {
+                for (int i = a + 1; i < b; i++) {
+                    gaps.add(i);
+                }
+            }
+        }
+        hashSome(hasher, frames, gaps, threads, hashes, errors);
+        return hashes;
+    }
+
+    private static void hashSome(ImagePHash hasher, List<File> frames, List<Integer> which,
+            int threads, PHash[] hashes, String[] errors) throws InterruptedException {
+        if (which.isEmpty()) {
+            return;
+        }
+        List<File> files = new ArrayList<File>(which.size());
+        for (int i : which) {
+            files.add(frames.get(i));
+        }
+        String[] err = new String[files.size()];
+        PHash[] h = BatchQuery.hashAll(hasher, files, threads, err);
+        for (int j = 0; j < h.length; j++) {
+            hashes[which.get(j)] = h[j];
+            errors[which.get(j)] = err[j];
+        }
+    }
+
+    /**
+     * Temporal dedup: indexes of the frames more than maxDistance from the
+     * keyframe before them. null hashes (skipped or failed) are passed over.
+     *
+     * @param hashes
+     *            in frame order
+     * @param maxDistance
+     * @return keyframe indexes, ascending
+     */
+    public static int[] keyframes(PHash[] hashes, int maxDistance) {
+        int[] keys = new int[hashes.length];
+        int count = 0;
+        PHash last = null;
+        for (int i = 0; i < hashes.length; i++) {
+            PHash h = hashes[i];
+            if (h != null && (last == null || last.distance(h) > maxDistance)) {
+                keys[count++] = i;
+                last = h;
+            }
+        }
+        int[] out = new int[count];
+        System.arraycopy(keys, 0, out, 0, count);
+        return out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("usage: VideoKeyframes <index .phx or hashtxt dir> <frame dir> <out.csv|out.jsonl> [maxDistance] [stride] [k] [threads]");
+            return;
+        }
+        Metrics.fromSystemProperties();
+        int maxDistance = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MAX_DISTANCE;
+        int stride = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        int k = args.length > 5 ? Integer.parseInt(args[5]) : 12;
+        int threads = args.length > 6 ? Integer.parseInt(args[6])
+                : Runtime.getRuntime().availableProcessors();
+
+        HashStore store = HashIndexFile.openStore(new File(args[0]));
+        if (store.words() != 1) {
+            throw new IOException("frame queries need hashes of up to "
+                    + PHash.MAX_LENGTH + " bits, the index holds " + store.hashLength());
+        }
+        List<File> frames = new ArrayList<File>();
+        BulkIndexer.collect(new File(args[1]), frames);
+        if (frames.isEmpty()) {
+            throw new IOException("no frames in " + args[1]);
+        }
+
+        /*
+         * hash the frames the way the index was made, except for the raster
+         * downscale: about 3x faster, and the same hash for 99.7% of images
+         * (DownscaleVerify); the rest are a bit or two off an AWT-built index
+         */
+        ImagePHash hasher = new ImagePHash(store.config() != null ? store.config()
+                : HashConfig.DEFAULT);
+        hasher.setDownscaleSamples(1);
+        String[] errors = new String[frames.size()];
+        long start = System.currentTimeMillis();
+        PHash[] hashes = hashFrames(hasher, frames, stride, maxDistance, threads, errors);
+        long hashed = System.currentTimeMillis();
+
+        int done = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] != null) {
+                done++;
+            } else if (errors[i] != null) {
+                System.err.println(frames.get(i) + ": " + errors[i]);
+            }
+        }
+        int[] keys = keyframes(hashes, maxDistance);
+        List<File> keyFiles = new ArrayList<File>(keys.length);
+        PHash[] keyHashes = new PHash[keys.length];
+        long[] queries = new long[keys.length];
+        for (int j = 0; j < keys.length; j++) {
+            keyFiles.add(frames.get(keys[j]));
+            keyHashes[j] = hashes[keys[j]];
+            if (keyHashes[j].length() != store.hashLength()) {
+                throw new IOException("index holds " + store.hashLength()
+                        + "-bit hashes, frames have " + keyHashes[j].length());
+            }
+            queries[j] = keyHashes[j].bits();
+        }
+        TopKCollector[] tops = BatchQuery.search(store, queries, k, threads);
+        long searched = System.currentTimeMillis();
+        BatchQuery.write(new File(args[2]), store, keyFiles, keyHashes,
+                new String[keys.length], tops);
+
+        System.out.println(frames.size() + " frames, " + done + " hashed, " + keys.length
+                + " keyframes (max distance " + maxDistance + ", stride " + stride
+                + ") against " + store.size() + " hashes: hashing " + (hashed - start)
+                + " ms, scan " + (searched - hashed) + " ms");
+    }
+}
@@ -7,8 +7,13 @@ import java.awt.image.ColorConvertOp;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
 
@@ -19,35 +24,53 @@ import javax.imageio.ImageIO;
 * Based On: http://www.hackerfactor.com/blog/index.php?/archives/432-Looks-Like-It.html
 */
 public class phash_comp {
-    static String[] image_name = new String[50000];
+
+    private static final Logger LOG = Logger.getLogger(phash_comp.class.getName());
 
     private int size = 32;
     private int smallerSize = 8;
+    private DctEngine dct;
 
     public phash_comp() {
-        this.initCoefficients();
+        this.dct = new SeparableDct(this.size, this.smallerSize);
     }
 
     private phash_comp(int size, int smallerSize) {
         this.size = size;
         this.smallerSize = smallerSize;
 
-        this.initCoefficients();
+        this.dct = new SeparableDct(this.size, this.smallerSize);
     }
 
-    private int distance(String s1, String s2) {
-        int counter = 0;
-        for (int k = 0; k < s1.length(); k++) {
-            if (s1.charAt(k) != s2.charAt(k)) {
-                counter++;
-            }
+    // Hashes an image file and closes it again.
+    PHash getPHash(File file) throws Exception {
+        InputStream is = new FileInputStream(file);
+        try {
+            return this.getPHash(is);
+        } finally {
+            is.close();
         }
-        return counter;
     }
 
-    // Returns a 'binary string' (like. 001010111011100010) which is easy to do a hamming distance on.
-    private String getHash(InputStream is) throws Exception {
-        BufferedImage img = ImageIO.read(is);
+    // Same hash packed into a long; compare with PHash.distance.
+    PHash getPHash(InputStream is) throws Exception {
+        long t = Metrics.start();
+        BufferedImage img;
+        try {
+            img = ImageIO.read(is);
+        } catch (IOException e) {
+            Metrics.decodeFailed();
+            throw e;
+        } catch (RuntimeException e) {
+            Metrics.decodeFailed();
+            throw e;
+        }
+        if (img == null) {
+            // no reader for the format; resize would fail with a NullPointerException
+            Metrics.decodeFailed();
+            throw new IOException("unsupported or corrupt image");
+        }
+        t = Metrics.stop(Metrics.DECODE, t);
 
         /*
          * 1. Reduce size(Сߴ). Like Average Hash, pHash starts with a small
@@ -56,6 +79,7 @@ public class phash_comp {
          * because it is needed to reduce the high frequencies.
          */
         img = this.resize(img, this.size, this.size);
+        t = Metrics.stop(Metrics.RESIZE, t);
 
         /*
          * 2. Reduce color(ɫ). The image is reduced to a grayscale just to
@@ -70,15 +94,15 @@ public class phash_comp {
                 vals[x][y] = getBlue(img, x, y);
             }
         }
+        t = Metrics.stop(Metrics.GRAYSCALE, t);
 
         /*
          * 3. Compute the DCT(DCT). The DCT(Discrete Cosine Transform,ɢת)
          * separates the image into a collection of frequencies and scalars.
          * While JPEG uses an 8x8 DCT, this algorithm uses a 32x32 DCT.
          */
-        long start = System.currentTimeMillis();
         double[][] dctVals = this.applyDCT(vals);
-        //        System.out.println("DCT_COST_TIME: " + (System.currentTimeMillis() - start));
+        t = Metrics.stop(Metrics.DCT, t);
 
         /*
          * 4. Reduce the DCT. This is the magic step. While the DCT is 32x32,
@@ -111,17 +135,21 @@ public class phash_comp {
          * long as the overall structure of the image remains the same; this can
          * survive gamma and color histogram adjustments without a problem.
          */
-        String hash = "";
+        long hash = 0;
+        int bits = 0;
 
         for (int x = 0; x < this.smallerSize; x++) {
             for (int y = 0; y < this.smallerSize; y++) {
                 if (x != 0 && y != 0) {
-                    hash += (dctVals[x][y] > avg ? "1" : "0");
+                    hash = (hash << 1) | (dctVals[x][y] > avg ? 1L : 0L);
+                    bits++;
                 }
             }
         }
 
-        return hash;
+        Metrics.stop(Metrics.BITS, t);
+        Metrics.hashed();
+        return new PHash(hash, bits);
     }
 
     private BufferedImage resize(BufferedImage image, int width, int height) {
@@ -145,39 +173,9 @@ public class phash_comp {
         return (img.getRGB(x, y)) & 0xff;
     }
 
-    // DCT function stolen from http://stackoverflow.com/questions/4240490/problems-with-dct-and-idct-algorithm-in-java
-
-    private double[] c;
-
-    private void initCoefficients() {
-        this.c = new double[this.size];
-
-        for (int i = 1; i < this.size; i++) {
-            this.c[i] = 1;
-        }
-        this.c[0] = 1 / Math.sqrt(2.0);
-    }
-
+    // the original DCT now lives in ReferenceDct; see DctEngine
     private double[][] applyDCT(double[][] f) {
-        int N = this.size;
-
-        double[][] F = new double[N][N];
-        for (int u = 0; u < N; u++) {
-            for (int v = 0; v < N; v++) {
-                double sum = 0.0;
-                for (int i = 0; i < N; i++) {
-                    for (int j = 0; j < N; j++) {
-                        sum += Math.cos(((2 * i + 1) / (2.0 * N)) * u * Math.PI)
-                                * Math.cos(
-                                        ((2 * j + 1) / (2.0 * N)) * v * Math.PI)
-                                * (f[i][j]);
-                    }
-                }
-                sum *= ((this.c[u] * this.c[v]) / 4.0);
-                F[u][v] = sum;
-            }
-        }
-        return F;
+        return this.dct.applyDCT(f);
     }
 
     /**
@@ -189,13 +187,13 @@ public class phash_comp {
      */
     public boolean imgChk(String img1, String img2, int tv) {
         phash_comp p = new phash_comp();
-        String image1;
-        String image2;
+        PHash image1;
+        PHash image2;
 
         try {
-            image1 = p.getHash(new FileInputStream(new File(img1)));
-            image2 = p.getHash(new FileInputStream(new File(img2)));
-            int dt = p.distance(image1, image2);
+            image1 = p.getPHash(new File(img1));
+            image2 = p.getPHash(new File(img2));
+            int dt = image1.distance(image2);
             System.out
                     .println("[" + img1 + "] : [" + img2 + "] Score is " + dt);
             if (dt <= tv) {
@@ -209,142 +207,106 @@ public class phash_comp {
         return false;
     }
 
-    //the mergesort is referenced from "https://www.cnblogs.com/of-fanruice/p/7678801.html"
-    public static int[] sort(int[] a, String[] str, int low, int high) {
-        int mid = (low + high) / 2;
-        if (low < high) {
-            sort(a, str, low, mid);
-            sort(a, str, mid + 1, high);
-            //ҹ鲢
-            merge(a, str, low, mid, high);
-        }
-        return a;
-    }
-
-    public static void merge(int[] a, String[] str, int low, int mid,
-            int high) {
-        String[] temp_str = new String[high - low + 1];
-        int[] temp = new int[high - low + 1];
-        int i = low;
-        int j = mid + 1;
-        int k = 0;
-        // ѽСƵ
-        while (i <= mid && j <= high) {
-            if (a[i] < a[j]) {
-                temp[k] = a[i];
-                temp_str[k] = str[i];
-                k++;
-                i++;
-            } else {
-                temp[k] = a[j];
-                temp_str[k] = str[j];
-                k++;
-                j++;
-            }
-        }
-        // ʣ
-        while (i <= mid) {
-            temp[k] = a[i];
-            temp_str[k] = str[i];
-            k++;
-            i++;
-        }
-        // ұ߱ʣ
-        while (j <= high) {
-            temp[k] = a[j];
-            temp_str[k] = str[j];
-            k++;
-            j++;
-        }
-        // еnums
-        for (int x = 0; x < temp.length; x++) {
-            a[x + low] = temp[x];
-            str[x + low] = temp_str[x];
-        }
-    }
-
     public static void main(String[] args) {
+        Metrics.fromSystemProperties();
         Scanner sc1 = new Scanner(System.in);
         String path_base = "";
         System.out.println("please enter the path of the image file:");
         path_base = sc1.nextLine();
         // = "D:/t7.jpg";
 
-        phash_comp hashc = new phash_comp();
-        String hashcode_base = "";
+        ///////////////////ƶļеͼƬ
+        // the catalogue is a .phx index (see HashIndexFile), an IncrementalIndex
+        // directory or the hashtxt directory, searched as one shard per landmark
+        // file (see ShardedIndex); args[1] = "notredame,louvre" limits it to those
+        String indexPath = args.length > 0 ? args[0] : "/hashtxt";
+        File file = new File(indexPath);
+        HashStore store;
+        ShardedIndex sharded = null;
+        try {
+            if (file.isDirectory() && !IncrementalIndex.isIndexDir(file)) {
+                sharded = ShardedIndex.byFile(file);
+                store = sharded;
+            } else {
+                store = HashIndexFile.openStore(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        List<String> only = args.length > 1 ? Arrays.asList(args[1].split(",")) : null;
 
+        // hash the query the way the catalogue was hashed: this class is the
+        // default 49-bit pHash, any other HashConfig goes through ImagePHash
+        HashConfig config = store.config();
+        PHash query;
         try {
-            hashcode_base = hashc
-                    .getHash(new FileInputStream(new File(path_base)));
-        } catch (FileNotFoundException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
+            query = config == null || config.equals(HashConfig.DEFAULT)
+                    ? new phash_comp().getPHash(new File(path_base))
+                    : new ImagePHash(config).getPHash(new File(path_base));
         } catch (Exception e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
+            // no hash, nothing to search for (an all-zero hash would still "match")
+            System.out.println("cannot hash " + path_base + ": " + e1);
+            return;
+        }
+        if (query.length() != store.hashLength()) {
+            System.out.println("index holds " + store.hashLength() + "-bit hashes, the query has "
+                    + query.length());
+            return;
+        }
+        if (store.words() != 1) {
+            System.out.println("phash_comp searches hashes of up to " + PHash.MAX_LENGTH
+                    + " bits, the index holds " + store.hashLength());
+            return;
+        }
+        long hashcode_base = query.bits();
+        if (only != null && sharded == null) {
+            System.out.println("shards are the files of a hashtxt directory, searching everything");
+            only = null;
         }
 
-        FileInputStream inputStream = null;
-        Scanner sc = null;
-        String fileName = "";
-
-        String txt_fileName = "";
-        ///////////////////ƶļеͼƬ
-        File file = new File("/hashtxt");
-
-        File[] fileList = file.listFiles();
-
-        int count = 0;
-        int[] dis_arr = new int[10000];
-        int[] after_sort = new int[10000];
-
-        for (int k = 0; k < fileList.length; k++) {
-            if (fileList[k].isFile()) {
-                fileName = fileList[k].getName();
-                try {
-                    inputStream = new FileInputStream("/hashtxt/" + fileName);
-                } catch (FileNotFoundException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-                sc = new Scanner(inputStream, "UTF-8");
-                while (sc.hasNextLine()) {
-
-                    String line = sc.nextLine();
-                    String[] s = line.split(" ");
-                    //԰ѵõֵǿתint
-                    String img_name = s[0];
-                    String hashcode = s[1];
-
-                    int dt = hashc.distance(hashcode_base, hashcode);
-
-                    System.out.println("ļ" + img_name + " hashcodeǣ"
-                            + hashcode + "   " + dt);
-                    dis_arr[count] = dt;
-                    image_name[count] = img_name;
+        // every record with its distance, only with the phash logger at FINE
+        // (see readme.txt); printing it costs far more than the search
+        for (int k = 0; LOG.isLoggable(Level.FINE) && k < store.size(); k++) {
+            if (only != null && !only.contains(sharded.shardName(sharded.shardOf(k)))) {
+                continue;
+            }
+            String img_name = store.name(k);
+            long hashcode = store.hash(k);
 
-                    count = count + 1;
+            int dt = PHash.distance(hashcode_base, hashcode);
 
-                    //System.out.println("");
-                    //feature_num++; ///ÿͼƬӦ
-                }
-            }
+            LOG.fine("ļ" + img_name + " hashcodeǣ"
+                    + PHash.toBitString(hashcode, store.hashLength()) + "   " + dt);
         }
 
-        //   for (int a = 0; a < count; a++) {
-        //      System.out.println(dis_arr[a]);
-        //  }
-        //    System.out.println(count);
-
-        after_sort = sort(dis_arr, image_name, 0, 6379);
+        // one HammingKernel scan (SIMD with --add-modules jdk.incubator.vector),
+        // run per shard on the ForkJoin pool for a hashtxt directory
+        HammingKernel kernel = HammingKernel.get();
+        TopKCollector top;
+        try {
+            top = sharded != null ? sharded.topK(hashcode_base, 12, only)
+                    : HashSearch.topK(store, hashcode_base, 12);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        } catch (IllegalStateException e) {
+            // e.g. a store of hashes longer than 64 bits
+            System.out.println(e.getMessage());
+            return;
+        }
 
-        //  for (int a = 0; a < count; a++) {
-        //     System.out.println(dis_arr[a]);
-        // }
         System.out.println("");
         System.out.println("the top 12 most similar picture should be:");
-        for (int a = 0; a < 12; a++) {
-            System.out.println(image_name[a] + "  " + after_sort[a]);
+        for (int a = 0; a < top.count(); a++) {
+            System.out.println(store.name(top.id(a)) + "  " + top.distance(a));
+        }
+        System.out.println("kernel: " + kernel.name());
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine(Metrics.get().getSnapshot());
         }
 
         /*